@@ -0,0 +1,100 @@
+package com.nahuellofeudo.piplates;
+
+/**
+ * A periodic slot on the SPI bus reserved by a time-critical thread.
+ * While the reservation is active, other threads will not start a transaction that would
+ * run into one of its slots. Obtained through PiPlate.reserveBus()
+ */
+public class BusReservation implements AutoCloseable {
+    private final Thread owner;
+    private final long firstSlotNanos;
+    private final long periodNanos;
+    private final long slotNanos;
+
+    BusReservation(Thread owner, long firstSlotNanos, long periodNanos, long slotNanos) {
+        this.owner = owner;
+        this.firstSlotNanos = firstSlotNanos;
+        this.periodNanos = periodNanos;
+        this.slotNanos = slotNanos;
+    }
+
+    /**
+     * Returns how long a transaction running in [start..end] has to wait to stay clear of this reservation
+     * @param start start of the transaction, in System.nanoTime() units
+     * @param end expected end of the transaction
+     * @return nanoseconds until the end of the conflicting slot, or 0 if there is no conflict
+     */
+    long conflict(long start, long end) {
+        // Start of the first slot that has not ended yet at 'start'
+        long elapsed = start - firstSlotNanos;
+        long slotStart = firstSlotNanos;
+        if (elapsed > 0) {
+            slotStart += (elapsed / periodNanos) * periodNanos;
+            if (start - slotStart >= slotNanos) slotStart += periodNanos;
+        }
+
+        if (end - slotStart <= 0) return 0;
+        return slotStart + slotNanos - start;
+    }
+
+    /**
+     * Returns how much later a train of slots has to start to stay clear of this reservation's slots.
+     * Two trains meet at every offset that is a multiple of the greatest common divisor of their periods, so only
+     * the phase difference modulo that divisor matters
+     * @param otherFirstSlotNanos start of the other train's first slot
+     * @param otherPeriodNanos the other train's period
+     * @param otherSlotNanos length of the other train's slots
+     * @return 0 if the trains never overlap, the shift that clears them, or -1 if no shift does
+     */
+    long clearance(long otherFirstSlotNanos, long otherPeriodNanos, long otherSlotNanos) {
+        long gcd = periodNanos;
+        long rest = otherPeriodNanos;
+        while (rest != 0) {
+            long next = gcd % rest;
+            gcd = rest;
+            rest = next;
+        }
+        if (slotNanos + otherSlotNanos > gcd) return -1;
+
+        long phase = Math.floorMod(otherFirstSlotNanos - firstSlotNanos, gcd);
+        if (phase < slotNanos) return slotNanos - phase;
+        if (phase > gcd - otherSlotNanos) return gcd - phase + slotNanos;
+        return 0;
+    }
+
+    /**
+     * @return the start of the first slot, in System.nanoTime() units
+     */
+    public long getFirstSlotNanos() {
+        return firstSlotNanos;
+    }
+
+    /**
+     * @return the thread that owns this reservation
+     */
+    public Thread getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return time between the start of consecutive slots, in nanoseconds
+     */
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @return the length of each slot, in nanoseconds
+     */
+    public long getSlotNanos() {
+        return slotNanos;
+    }
+
+    /**
+     * Releases the reservation
+     */
+    @Override
+    public void close() {
+        PiPlate.releaseBus(this);
+    }
+}
@@ -1,10 +1,19 @@
 package com.nahuellofeudo.piplates;
 
-import com.pi4j.io.gpio.*;
-import com.pi4j.wiringpi.Spi;
+import com.nahuellofeudo.piplates.shared.CrossProcessTransport;
+import com.nahuellofeudo.piplates.transport.RecordingTransport;
+import com.nahuellofeudo.piplates.transport.ReplayTransport;
+import com.nahuellofeudo.piplates.transport.SpidevTransport;
+import com.nahuellofeudo.piplates.transport.Transport;
+import com.nahuellofeudo.piplates.transport.WiringPiTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Parent class for all PiPlate driver classes
  * Created by nahuellofeudo on 9/3/16.
@@ -12,54 +21,111 @@ import org.slf4j.LoggerFactory;
 public abstract class PiPlate {
     static Logger log = LoggerFactory.getLogger(PiPlate.class);
 
-    private static int descriptor;
-    private static GpioPinDigitalOutput frame;
-    private static GpioPinDigitalInput interrupt;
+    private static volatile Transport transport;
     public int address;
 
+    // Transfer buffers. Only used while holding the bus lock, so they can be shared by all plates
+    private static final byte[] packet = new byte[4];
+
+    // Bus slots reserved by time-critical threads (see reserveBus)
+    private static volatile BusReservation[] reservations = new BusReservation[0];
+
     /**
      * Constructor for the base class
      * @param address the plate's address
      * @throws InvalidAddressException when address is outside [0..7]
      */
      public PiPlate(int address) throws InvalidAddressException {
-         // Allocate GPIO and open SPI channel
-         PiPlate.allocateGPIO();
+         // Open the bus
+         PiPlate.getTransport();
 
          if (address < 0 || address > 7) throw new InvalidAddressException("Address must be in the range [0..7]");
          this.address = address;
-         log.debug("Initializing Pi4J-Core");
     }
 
+
+    /* --------- Transport selection --------- */
     /**
-     * Configures the GPIO pins for Frame and Interrupt, and initializes the SPI bus
+     * Returns the transport used to talk to the plates, creating it the first time.
+     * The default is selected with the following system properties:
+     * <ul>
+     *     <li>piplates.transport: "wiringpi" (default), "spidev" (see SpidevTransport.open()) or "replay"</li>
+     *     <li>piplates.replay.file: recording to serve when using "replay"</li>
+     *     <li>piplates.replay.timescale: multiplier for the recorded timing when using "replay" (default 1)</li>
+     *     <li>piplates.record.file: if set, every exchange is recorded to this file</li>
+     *     <li>piplates.crossprocess: if "true", the bus is shared safely with other processes (see CrossProcessTransport). Needs Java 11 or later</li>
+     * </ul>
+     * @return the transport
      */
-    private static synchronized void allocateGPIO() {
+    public static Transport getTransport() {
+        // Don't take the bus lock once the transport exists: callers estimating the length of their
+        // transaction must not wait for the one in progress
+        Transport current = transport;
+        if (current != null) return current;
+        synchronized (PiPlate.class) {
+            if (transport == null) {
+                transport = createTransport();
+            }
+            return transport;
+        }
+    }
 
-        // Set up port pins
-        GpioController gpio = GpioFactory.getInstance();
+    /**
+     * Replaces the transport used by all plates. Waits for the transaction in progress, if any.
+     * The previous transport is not closed, and neither is the new one: callers own the transports they install
+     * and must close them (e.g. to finish a RecordingTransport's file) when they are done.
+     * @param newTransport the transport to use from now on
+     */
+    public static synchronized void setTransport(Transport newTransport) {
+        transport = newTransport;
+    }
 
-        if (frame == null) {
-            frame = gpio.provisionDigitalOutputPin(RaspiPin.GPIO_06, "Frame", PinState.LOW);
-            gpio.setMode(PinMode.DIGITAL_OUTPUT, frame);
-        }
+    private static Transport createTransport() {
+        String type = System.getProperty("piplates.transport", "wiringpi");
+        Transport created;
+        try {
+            if (type.equals("wiringpi")) {
+                created = new WiringPiTransport();
+            } else if (type.equals("spidev")) {
+                created = SpidevTransport.open();
+            } else if (type.equals("replay")) {
+                String file = System.getProperty("piplates.replay.file");
+                if (file == null) throw new IllegalStateException("piplates.replay.file must be set to use the replay transport");
+                double timeScale = Double.parseDouble(System.getProperty("piplates.replay.timescale", "1"));
+                created = new ReplayTransport(new File(file), timeScale);
+            } else {
+                throw new IllegalStateException("Unknown transport " + type);
+            }
 
-        if (interrupt == null) {
-            interrupt = gpio.provisionDigitalInputPin(RaspiPin.GPIO_03, "Interrupt", PinPullResistance.PULL_UP);
-            gpio.setMode(PinMode.DIGITAL_INPUT, interrupt);
-        }
+            String recordFile = System.getProperty("piplates.record.file");
+            if (recordFile != null) {
+                created = new RecordingTransport(created, new File(recordFile));
+            }
 
-        if (descriptor == 0) {
-            // Initialize SPI bus
-            log.debug("Initializing SPI bus...");
-            descriptor = Spi.wiringPiSPISetupMode(Spi.CHANNEL_1, 500000, Spi.MODE_0);
+            if (Boolean.getBoolean("piplates.crossprocess")) {
+                created = new CrossProcessTransport(created);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error initializing transport " + type, e);
         }
+        log.debug("Using transport {}", created.getClass().getSimpleName());
 
-        if (descriptor < 0) {
-            // SPI could not be initialized. Bail
-            log.error("SPI could not be initialized");
-            throw new RuntimeException("Error initializing SPI");
-        }
+        // Nobody else holds a reference to the transports we create, so close them on exit.
+        // Among other things, this flushes the tail of a recording
+        final Transport toClose = created;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PiPlate.class) {
+                    try {
+                        toClose.close();
+                    } catch (IOException | RuntimeException e) {
+                        log.error("Error closing transport", e);
+                    }
+                }
+            }
+        }, "piplates-transport-close"));
+        return created;
     }
 
 
@@ -74,29 +140,48 @@ public abstract class PiPlate {
      * @return a (possibly null) array of bytes with the plate's response
      */
     public byte [] ppCommand(int command, int parameter1, int parameter2, int bytesToReturn, int processingDelay) {
-        byte[] packet = new byte[4];
-        packet[0] = (byte) (getBaseAddr() + address);
-        packet[1] = (byte)command;
-        packet[2] = (byte)parameter1;
-        packet[3] = (byte)parameter2;
+        byte[] returnData = null;
+        if (bytesToReturn > 0) {
+            returnData = new byte[bytesToReturn];
+        }
+        ppCommand(command, parameter1, parameter2, returnData, bytesToReturn, processingDelay);
+        return returnData;
+    }
 
-        synchronized (PiPlate.class) {
-            // Write command
-            frame.high();
-            delay();
-            transferData(Spi.CHANNEL_1, packet, packet.length);
-
-            // read response (if necessary)
-            byte[] returnData = null;
-            if (bytesToReturn > 0) {
-                returnData = new byte[bytesToReturn];
-
-                delay(processingDelay);
-                transferData(Spi.CHANNEL_1, returnData, bytesToReturn);
+    /**
+     * Send a command to a plate, reading the response (if any) into a buffer supplied by the caller.
+     * This variant does not allocate, so it can be used from time-critical code.
+     * @param command command (plate-dependent)
+     * @param parameter1 1st parameter (command-dependent)
+     * @param parameter2 2nd parameter (command-dependent)
+     * @param response buffer where the response is stored. May be null if bytesToReturn is 0
+     * @param bytesToReturn number of bytes to read back from the plate as a response
+     * @param processingDelay milliseconds to wait between sending the command and reading the response
+     */
+    public void ppCommand(int command, int parameter1, int parameter2, byte[] response, int bytesToReturn, int processingDelay) {
+        long duration = estimateCommandNanos(bytesToReturn, processingDelay);
+        long waitStart = System.nanoTime();
+        while (true) {
+            // Don't start a transaction that would run into another thread's reserved bus slot.
+            // Wait outside the lock, so the owner of the slot can take the bus when its slot comes
+            long wait = reservedSlotWait(duration, System.nanoTime() - waitStart);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+
+            synchronized (PiPlate.class) {
+                // Check again: we may have waited for the lock behind someone else's transaction
+                if (reservedSlotWait(duration, System.nanoTime() - waitStart) > 0) continue;
+
+                packet[0] = (byte) (getBaseAddr() + address);
+                packet[1] = (byte)command;
+                packet[2] = (byte)parameter1;
+                packet[3] = (byte)parameter2;
+
+                getTransport().exchange(packet, response, bytesToReturn, processingDelay);
+                return;
             }
-            frame.low();
-            delay();
-            return returnData;
         }
     }
 
@@ -108,19 +193,115 @@ public abstract class PiPlate {
     }
 
     /**
-     * Transfers data to and/or from a Pi-Plate, one byte at a time, toggling Chip Select between bytes
-     * @param channel channel number (normally 1)
-     * @param data the data to send, or the buffer where to put the data received
-     * @param length number of bytes to send/receive
+     * Estimates how long a call to ppCommand will hold the bus
+     * @param bytesToReturn number of bytes read back from the plate
+     * @param processingDelay milliseconds waited between the command and the response
+     * @return the estimated duration of the transaction, in nanoseconds
      */
-    private void transferData(int channel, byte [] data, int length) {
-        byte [] dummy = new byte[1];
-        for(int x = 0; x < length; x++) {
-            dummy[0] = data[x];
-            Spi.wiringPiSPIDataRW(channel, dummy, 1);
-            try { Thread.sleep(0, 500); } catch (Exception e) {}
-            data[x] = dummy[0];
+    protected static long estimateCommandNanos(int bytesToReturn, int processingDelay) {
+        return getTransport().estimateNanos(bytesToReturn, processingDelay);
+    }
+
+
+    /* --------- Bus reservations --------- */
+    /**
+     * Reserves a periodic slot on the bus for the calling thread.
+     * Other threads will not start a transaction that could overlap one of the slots, so the
+     * owner finds the bus free when its slot comes. Close the reservation to release it.
+     * A transaction too long to fit between two slots does not wait forever: once it has waited a full period
+     * it runs anyway and delays the owner's next slot, so keep periodNanos - slotNanos longer than the longest
+     * command other threads send (e.g. about 325ms for DAQCPlate.getADCAll() over WiringPi).
+     * @param firstSlotNanos start of the first slot, in System.nanoTime() units
+     * @param periodNanos time between the start of consecutive slots
+     * @param slotNanos length of each slot
+     * @return the reservation, owned by the calling thread
+     * @throws InvalidParameterException if the slot does not fit in the period, or can't be placed clear of the
+     *                                   existing reservations
+     * @see #reserveBus(Thread, long, long, long)
+     */
+    public static BusReservation reserveBus(long firstSlotNanos, long periodNanos, long slotNanos) throws InvalidParameterException {
+        return reserveBus(Thread.currentThread(), firstSlotNanos, periodNanos, slotNanos);
+    }
+
+    /**
+     * Reserves a periodic slot on the bus for a thread (see reserveBus(long, long, long)).
+     * Reservations never overlap each other: if the requested slots would run into another reservation's, the
+     * first slot is moved to the earliest later phase (less than one period later) that is clear of all of them.
+     * Use BusReservation.getFirstSlotNanos() to find out where it ended up.
+     * @param owner the thread that will use the slots
+     * @param firstSlotNanos requested start of the first slot, in System.nanoTime() units
+     * @param periodNanos time between the start of consecutive slots
+     * @param slotNanos length of each slot
+     * @return the reservation
+     * @throws InvalidParameterException if the slot does not fit in the period, or no phase is clear of the
+     *                                   existing reservations
+     */
+    public static BusReservation reserveBus(Thread owner, long firstSlotNanos, long periodNanos, long slotNanos) throws InvalidParameterException {
+        if (slotNanos <= 0 || slotNanos >= periodNanos) throw new InvalidParameterException("Slot length must be greater than 0 and shorter than the period");
+        BusReservation reservation;
+        synchronized (BusReservation.class) {
+            long shift = 0;
+            boolean clear = false;
+            while (!clear) {
+                // The overlaps repeat every period, so if no phase within one period is clear none is
+                if (shift >= periodNanos) throw new InvalidParameterException("No bus slot of " + slotNanos + "ns every " + periodNanos + "ns is clear of the existing reservations");
+                clear = true;
+                for (BusReservation existing : reservations) {
+                    long clearance = existing.clearance(firstSlotNanos + shift, periodNanos, slotNanos);
+                    if (clearance < 0) throw new InvalidParameterException("A bus slot of " + slotNanos + "ns every " + periodNanos + "ns always overlaps the one reserved by " + existing.getOwner().getName());
+                    if (clearance > 0) {
+                        shift += clearance;
+                        clear = false;
+                    }
+                }
+            }
+
+            reservation = new BusReservation(owner, firstSlotNanos + shift, periodNanos, slotNanos);
+            BusReservation[] updated = Arrays.copyOf(reservations, reservations.length + 1);
+            updated[reservations.length] = reservation;
+            reservations = updated;
+        }
+        log.debug("Reserved bus slot of {}ns every {}ns", slotNanos, periodNanos);
+        return reservation;
+    }
+
+    /**
+     * Removes a reservation created by reserveBus
+     */
+    static void releaseBus(BusReservation reservation) {
+        synchronized (BusReservation.class) {
+            BusReservation[] current = reservations;
+            for (int x = 0; x < current.length; x++) {
+                if (current[x] == reservation) {
+                    BusReservation[] updated = new BusReservation[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, x);
+                    System.arraycopy(current, x + 1, updated, x, current.length - x - 1);
+                    reservations = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how long a transaction of the given duration, starting now, has to wait to stay clear
+     * of the slots reserved by other threads
+     * @param durationNanos the expected duration of the transaction
+     * @param waitedNanos how long the transaction has waited already. Reservations whose whole period has gone by
+     *                    are ignored, so a transaction that can't fit between their slots is not held back forever
+     * @return nanoseconds to wait, or 0 if the transaction can start now
+     */
+    private static long reservedSlotWait(long durationNanos, long waitedNanos) {
+        Thread current = Thread.currentThread();
+        long wait = 0;
+        long now = System.nanoTime();
+        BusReservation[] active = reservations;
+        for (int x = 0; x < active.length; x++) {
+            if (active[x].getOwner() != current && waitedNanos < active[x].getPeriodNanos()) {
+                wait = Math.max(wait, active[x].conflict(now, now + durationNanos));
+            }
         }
+        return wait;
     }
 
 
@@ -169,19 +350,6 @@ public abstract class PiPlate {
         return (val & 0xFF);
     }
 
-    /**
-     * Pauses the current thread
-     * @param milliseconds number of milliseconds to pause
-     */
-    private void delay(int milliseconds) {
-        try {Thread.sleep(milliseconds);} catch (InterruptedException e) {}
-    }
-
-    /**
-     * One millisecond pause
-     */
-    private void delay() { delay (1); }
-
     /**
      * Define the plate's base address
      * Implemented by plate-specific classes
@@ -0,0 +1,98 @@
+package com.nahuellofeudo.piplates;
+
+/**
+ * Accumulates timing samples (jitter, latency) without allocating.
+ * Keeps running totals plus a ring of the most recent samples.
+ */
+public class TimingStatistics {
+    private final long[] recent;
+    private long count;
+    private long sum;
+    private long min;
+    private long max;
+
+    /**
+     * Constructor
+     * @param history number of recent samples to keep
+     */
+    public TimingStatistics(int history) {
+        recent = new long[Math.max(1, history)];
+        reset();
+    }
+
+    /**
+     * Adds a sample
+     * @param nanos the value of the sample, in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        recent[(int) (count % recent.length)] = nanos;
+        count++;
+        sum += nanos;
+        if (nanos < min) min = nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    /**
+     * Discards all samples
+     */
+    public synchronized void reset() {
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the number of samples recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest sample, or 0 if there are none
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the largest sample, or 0 if there are none
+     */
+    public synchronized long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * @return the average of all samples, or 0 if there are none
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return the most recent sample, or 0 if there are none
+     */
+    public synchronized long getLast() {
+        return count == 0 ? 0 : recent[(int) ((count - 1) % recent.length)];
+    }
+
+    /**
+     * Copies the most recent samples, oldest first
+     * @param destination array where to copy the samples
+     * @return the number of samples copied
+     */
+    public synchronized int getRecent(long[] destination) {
+        int available = (int) Math.min(count, recent.length);
+        int copied = Math.min(available, destination.length);
+        for (int x = 0; x < copied; x++) {
+            destination[x] = recent[(int) ((count - copied + x) % recent.length)];
+        }
+        return copied;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("count=%d min=%dns max=%dns mean=%.0fns", count, getMin(), getMax(), getMean());
+    }
+}
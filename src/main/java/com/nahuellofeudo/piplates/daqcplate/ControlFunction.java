@@ -0,0 +1,16 @@
+package com.nahuellofeudo.piplates.daqcplate;
+
+/**
+ * The compute step of a ControlLoop (for example, a PID controller).
+ * Called once per cycle from the loop's thread; implementations should not allocate or block.
+ */
+public interface ControlFunction {
+    /**
+     * Computes the new output from the latest input
+     * @param input the value read from the A/D converter
+     * @param periodSeconds the loop period, in seconds
+     * @return the new output value: 0..1023 for PWM outputs, 0..4.095 volts for DAC outputs.
+     *         Values outside the range are clamped.
+     */
+    double update(int input, double periodSeconds);
+}
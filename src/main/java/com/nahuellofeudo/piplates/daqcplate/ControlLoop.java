@@ -0,0 +1,194 @@
+package com.nahuellofeudo.piplates.daqcplate;
+
+import com.nahuellofeudo.piplates.BusReservation;
+import com.nahuellofeudo.piplates.InvalidParameterException;
+import com.nahuellofeudo.piplates.PiPlate;
+import com.nahuellofeudo.piplates.TimingStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a read-compute-write cycle (A/D input -> ControlFunction -> PWM or DAC output) at a fixed rate.
+ * Cycles are scheduled against absolute deadlines, so lateness in one cycle does not shift the following ones,
+ * and the bus is reserved for the duration of each cycle so other threads do not delay it.
+ * Everything the cycle needs is allocated up front.
+ *
+ * Commands from other threads run in the time between cycles. One that doesn't fit there waits at most one period
+ * and then runs anyway, delaying the next cycle (see PiPlate.reserveBus), so choose a period that leaves room for the
+ * longest command the rest of the application sends.
+ */
+public class ControlLoop {
+    static Logger log = LoggerFactory.getLogger(ControlLoop.class);
+
+    // Sleep until this long before the deadline, then spin
+    private static final long SPIN_NANOS = 200000;
+
+    private final DAQCPlate plate;
+    private final int inputChannel;
+    private final ControlOutput outputType;
+    private final int outputChannel;
+    private final ControlFunction function;
+    private final long periodNanos;
+    private final double periodSeconds;
+    private final long slotNanos;
+
+    private final byte[] response = new byte[2];
+    private final TimingStatistics jitter;
+    private volatile long cycles;
+    private volatile long missedDeadlines;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Constructor
+     * @param plate the plate to read from and write to
+     * @param inputChannel A/D channel to read, in the range [0..7]
+     * @param outputType whether to drive the PWM or the DAC output
+     * @param outputChannel the output channel (0 or 1)
+     * @param function the function that computes the output from the input
+     * @param period the loop period
+     * @param unit unit of period
+     * @throws InvalidParameterException if a channel is invalid or the period is shorter than a bus cycle
+     */
+    public ControlLoop(DAQCPlate plate, int inputChannel, ControlOutput outputType, int outputChannel,
+                       ControlFunction function, long period, TimeUnit unit) throws InvalidParameterException {
+        if (inputChannel < 0 || inputChannel > 7) throw new InvalidParameterException("Input channel must be in the range [0..7]");
+        if (outputChannel != 0 && outputChannel != 1) throw new InvalidParameterException("Output channel must be 0 or 1");
+        this.plate = plate;
+        this.inputChannel = inputChannel;
+        this.outputType = outputType;
+        this.outputChannel = outputChannel;
+        this.function = function;
+        this.periodNanos = unit.toNanos(period);
+        this.periodSeconds = periodNanos / 1e9;
+        this.slotNanos = plate.controlCycleNanos();
+        if (slotNanos >= periodNanos) throw new InvalidParameterException("Period must be longer than " + slotNanos + "ns");
+        this.jitter = new TimingStatistics(1024);
+    }
+
+    /**
+     * Starts the loop on its own thread. The first cycle runs one period from now, or later if that would
+     * overlap the bus slots of another loop (see PiPlate.reserveBus)
+     * @throws InvalidParameterException if the loop's bus slots can't be placed clear of the existing reservations
+     */
+    public synchronized void start() throws InvalidParameterException {
+        if (running) return;
+        final BusReservation[] reservation = new BusReservation[1];
+        Thread loopThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop(reservation[0]);
+            }
+        }, "piplates-control-loop-" + plate.address + "-" + inputChannel);
+        reservation[0] = PiPlate.reserveBus(loopThread, System.nanoTime() + periodNanos, periodNanos, slotNanos);
+        running = true;
+        thread = loopThread;
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop and waits for the current cycle to finish
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        if (current != null) {
+            LockSupport.unpark(current);
+            current.join();
+        }
+    }
+
+    /**
+     * @return true if the loop is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start-time jitter of each cycle (actual start minus scheduled start), in nanoseconds
+     */
+    public TimingStatistics getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return the number of cycles run
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @return the number of cycles that overran their period or were skipped because the loop fell behind
+     */
+    public long getMissedDeadlines() {
+        return missedDeadlines;
+    }
+
+    private void runLoop(BusReservation reservation) {
+        long deadline = reservation.getFirstSlotNanos();
+        try {
+            while (running) {
+                waitUntil(deadline);
+                if (!running) break;
+
+                long start = System.nanoTime();
+                jitter.record(start - deadline);
+                runCycle();
+                cycles++;
+
+                long next = deadline + periodNanos;
+                long end = System.nanoTime();
+                if (end - next > 0) {
+                    // Overran: skip the periods we can no longer meet instead of bursting to catch up
+                    long behind = (end - next) / periodNanos + 1;
+                    missedDeadlines += behind;
+                    next += behind * periodNanos;
+                }
+                deadline = next;
+            }
+        } catch (RuntimeException e) {
+            log.error("Control loop stopped", e);
+            running = false;
+        } finally {
+            reservation.close();
+        }
+    }
+
+    private void runCycle() {
+        int input = plate.readADC(inputChannel, response);
+        double output = function.update(input, periodSeconds);
+
+        int value;
+        if (outputType == ControlOutput.DAC) {
+            value = plate.dacToPWM(Math.max(0, Math.min(4.095, output)));
+        } else {
+            value = (int) Math.max(0, Math.min(1023, output));
+        }
+        plate.writePWM(outputChannel, value);
+    }
+
+    /**
+     * Waits until the deadline: parks for most of the time, then spins for the last stretch
+     */
+    private void waitUntil(long deadline) {
+        long remaining;
+        while (running && (remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while (running && deadline - System.nanoTime() > 0) {
+            // spin
+        }
+    }
+}
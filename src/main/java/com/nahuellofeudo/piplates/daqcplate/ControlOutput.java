@@ -0,0 +1,9 @@
+package com.nahuellofeudo.piplates.daqcplate;
+
+/**
+ * The kind of output a ControlLoop drives
+ */
+public enum ControlOutput {
+    PWM,
+    DAC
+}
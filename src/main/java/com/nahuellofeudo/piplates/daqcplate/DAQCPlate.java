@@ -9,8 +9,10 @@ import com.nahuellofeudo.piplates.PiPlateException;
  * Created by nahuellofeudo on 8/31/16.
  */
 public class DAQCPlate extends PiPlate {
+    // Address byte of the DAQCPlate on address 0
+    public static final int BASE_ADDRESS = 8;
 
-    // The VCC Calibration value for ADC
+    // The VCC Calibration value for ADC, in millivolts
     int vccValue;
 
     /**
@@ -34,7 +36,7 @@ public class DAQCPlate extends PiPlate {
      */
     @Override
     protected int getBaseAddr() {
-        return 8;
+        return BASE_ADDRESS;
     }
 
 
@@ -195,8 +197,31 @@ public class DAQCPlate extends PiPlate {
      */
     public int getADC(int channel) throws InvalidParameterException {
         validateAnalogIn(channel);
-        byte [] resp = ppCommand(0x30, channel, 0, 2, 100);
-        int value = (256 * unsigned(resp[0]) + unsigned(resp[1]));
+        return readADC(channel, new byte[2]);
+    }
+
+
+    /**
+     * Reads an A/D input without validating the channel or allocating
+     * @param channel A/D channel to read from
+     * @param resp a buffer of at least 2 bytes for the plate's response
+     * @return the value returned by the A/D converter
+     */
+    int readADC(int channel, byte[] resp) {
+        ppCommand(0x30, channel, 0, resp, 2, 100);
+        return decodeADC(resp, 0, channel);
+    }
+
+
+    /**
+     * Converts the two bytes returned by the plate for an A/D channel into its value
+     * @param resp the plate's response
+     * @param offset position of the channel's bytes in resp
+     * @param channel the A/D channel the bytes belong to
+     * @return the value of the A/D converter
+     */
+    public static int decodeADC(byte[] resp, int offset, int channel) {
+        int value = (256 * (resp[offset] & 0xFF) + (resp[offset + 1] & 0xFF));
         value *= 4;
         if (channel == 8) {
             value = value * 2;
@@ -230,6 +255,16 @@ public class DAQCPlate extends PiPlate {
     public void setPWM(int channel, int value) throws InvalidParameterException {
         if (value < 0 || value > 1023) throw new InvalidParameterException("ERROR: PWM argument out of range - must be between 0 and 1023");
         if (channel != 0 && channel != 1) throw new InvalidParameterException("Error: PWM channel must be 0 or 1");
+        writePWM(channel, value);
+    }
+
+
+    /**
+     * Sets a PWM output channel without validating the parameters
+     * @param channel the channel (0 or 1)
+     * @param value the value (0..1023)
+     */
+    void writePWM(int channel, int value) {
         byte hibyte = (byte) (value >> 8);
         byte lobyte = (byte) (value - (hibyte << 8));
         ppCommand(0x40+channel, hibyte, lobyte, 0);
@@ -258,8 +293,29 @@ public class DAQCPlate extends PiPlate {
      */
     public void setDAC(int channel, double value) throws InvalidParameterException {
         if (value < 0 || value > 4.095) throw new InvalidParameterException("ERROR: DAC argument out of range - must be between 0 and 4.095 volts");
-        value = value / (vccValue * 1024);
-        this.setPWM(channel, (int) value);
+        this.setPWM(channel, dacToPWM(value));
+    }
+
+
+    /**
+     * Converts an analog output value into the PWM value that produces it
+     * @param value the value (0v to 4.095v)
+     * @return the PWM value
+     */
+    int dacToPWM(double value) {
+        // vccValue is in millivolts, like every A/D reading
+        if (vccValue <= 0) return 0;
+        long pwm = Math.round(value * 1000 * 1023 / vccValue);
+        return (int) Math.max(0, Math.min(1023, pwm));
+    }
+
+
+    /**
+     * Estimates how long the bus is busy for one A/D read followed by one PWM/DAC write
+     * @return the estimated duration, in nanoseconds
+     */
+    long controlCycleNanos() {
+        return estimateCommandNanos(2, 100) + estimateCommandNanos(0, 0);
     }
 
 
@@ -271,7 +327,7 @@ public class DAQCPlate extends PiPlate {
      */
     double getDAC (int channel) throws InvalidParameterException {
         int value = getPWM(channel);
-        return (value * vccValue) / 1023;
+        return (value * vccValue) / 1023.0 / 1000;
     }
 
 
@@ -12,6 +12,9 @@ import org.slf4j.LoggerFactory;
 public class RELAYPlate extends PiPlate {
     static Logger log = LoggerFactory.getLogger(RELAYPlate.class);
 
+    // Address byte of the RELAYPlate on address 0
+    public static final int BASE_ADDRESS = 24;
+
     /**
      * Constructor
      * @param address the address of the DAQCPlate in the range [0..7]
@@ -28,7 +31,7 @@ public class RELAYPlate extends PiPlate {
      */
     @Override
     protected int getBaseAddr() {
-        return 24;
+        return BASE_ADDRESS;
     }
 
 
@@ -0,0 +1,421 @@
+package com.nahuellofeudo.piplates.scheduler;
+
+import com.nahuellofeudo.piplates.InvalidParameterException;
+import com.nahuellofeudo.piplates.PiPlate;
+import com.nahuellofeudo.piplates.PiPlateException;
+import com.nahuellofeudo.piplates.TimingStatistics;
+import com.nahuellofeudo.piplates.daqcplate.BiColorLED;
+import com.nahuellofeudo.piplates.daqcplate.DAQCPlate;
+import com.nahuellofeudo.piplates.relayplate.RELAYPlate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Applies output changes (relay pulses, PWM, LED and relay changes) at scheduled times from a single thread.
+ *
+ * Changes are kept in a hashed timer wheel: each tick the thread fires the changes due in the current bucket.
+ * Changes to the same plate that fall in the same tick are merged: only the last value of each output is written,
+ * and changes to three or more relays of a RELAYPlate become one relayState() read plus one relayAll() write.
+ * The two halves of a relay pulse are never merged; the opening half is moved to a later tick if needed.
+ * The delay between each change's scheduled time and the moment it is written is recorded in getLatency().
+ *
+ * The relayState()/relayAll() merge is a read-modify-write that is not atomic: a relay changed by another thread
+ * (or process) between the read and the write is set back to the state that was read. Don't mix scheduled relay
+ * changes with direct relay writes on the same plate if that matters.
+ */
+public class OutputScheduler {
+    static Logger log = LoggerFactory.getLogger(OutputScheduler.class);
+
+    private static final Comparator<ScheduledOutput> DEADLINE_ORDER = new Comparator<ScheduledOutput>() {
+        @Override
+        public int compare(ScheduledOutput a, ScheduledOutput b) {
+            int byDeadline = Long.signum(a.deadline - b.deadline);
+            return byDeadline != 0 ? byDeadline : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    // Fewer relay changes than this are written one by one
+    private static final int MIN_RELAYS_TO_MERGE = 3;
+
+    private final long tickNanos;
+    private final ScheduledOutput[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final Queue<ScheduledOutput> pending = new ConcurrentLinkedQueue<ScheduledOutput>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final TimingStatistics latency = new TimingStatistics(1024);
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long tick;
+    private volatile long writes;
+    private volatile long merged;
+
+    /**
+     * Constructor with a 10ms tick and 512 buckets
+     */
+    public OutputScheduler() {
+        this(10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Constructor
+     * @param tickDuration the timer resolution. Changes due in the same tick on the same plate are merged
+     * @param unit unit of tickDuration
+     * @param wheelSize number of buckets in the wheel. Rounded up to a power of 2
+     */
+    public OutputScheduler(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be positive");
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) throw new IllegalArgumentException("Wheel size must be in the range [1..2^30]");
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new ScheduledOutput[size];
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, "piplates-output-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /* --------- Scheduling --------- */
+    /**
+     * Closes a relay now and opens it again after a while
+     * @param plate the plate
+     * @param relay the relay, in the range [1..7]
+     * @param duration how long to keep the relay closed. Pulses are at least one tick long
+     * @param unit unit of duration
+     * @return the scheduled change that opens the relay. Cancelling it cancels both halves of the pulse,
+     *         so if the relay has already closed it stays closed
+     * @throws InvalidParameterException if the relay is invalid
+     */
+    public ScheduledOutput pulseRelay(RELAYPlate plate, int relay, long duration, TimeUnit unit) throws InvalidParameterException {
+        validateRelay(relay);
+        long now = System.nanoTime();
+        ScheduledOutput on = create(plate, ScheduledOutput.Kind.RELAY_ON, relay, 1, now);
+        ScheduledOutput off = create(plate, ScheduledOutput.Kind.RELAY_OFF, relay, 0, now + unit.toNanos(duration));
+        on.linked = off;
+        off.linked = on;
+        submit(on);
+        submit(off);
+        return off;
+    }
+
+    /**
+     * Closes (activates) a relay after a delay
+     * @param plate the plate
+     * @param relay the relay, in the range [1..7]
+     * @param delay the delay
+     * @param unit unit of delay
+     * @return the scheduled change
+     * @throws InvalidParameterException if the relay is invalid
+     */
+    public ScheduledOutput relayOn(RELAYPlate plate, int relay, long delay, TimeUnit unit) throws InvalidParameterException {
+        validateRelay(relay);
+        return submit(create(plate, ScheduledOutput.Kind.RELAY_ON, relay, 1, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    /**
+     * Opens (deactivates) a relay after a delay
+     * @param plate the plate
+     * @param relay the relay, in the range [1..7]
+     * @param delay the delay
+     * @param unit unit of delay
+     * @return the scheduled change
+     * @throws InvalidParameterException if the relay is invalid
+     */
+    public ScheduledOutput relayOff(RELAYPlate plate, int relay, long delay, TimeUnit unit) throws InvalidParameterException {
+        validateRelay(relay);
+        return submit(create(plate, ScheduledOutput.Kind.RELAY_OFF, relay, 0, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    /**
+     * Turns a RELAYPlate's LED on or off after a delay
+     * @param plate the plate
+     * @param on true to turn the LED on, false to turn it off
+     * @param delay the delay
+     * @param unit unit of delay
+     * @return the scheduled change
+     */
+    public ScheduledOutput setLED(RELAYPlate plate, boolean on, long delay, TimeUnit unit) {
+        return submit(create(plate, ScheduledOutput.Kind.RELAY_LED, 0, on ? 1 : 0, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    /**
+     * Sets a DAQCPlate's PWM output after a delay
+     * @param plate the plate
+     * @param channel the channel (0 or 1)
+     * @param value the value (0..1023)
+     * @param delay the delay
+     * @param unit unit of delay
+     * @return the scheduled change
+     * @throws InvalidParameterException if the channel or value are invalid
+     */
+    public ScheduledOutput setPWM(DAQCPlate plate, int channel, int value, long delay, TimeUnit unit) throws InvalidParameterException {
+        if (value < 0 || value > 1023) throw new InvalidParameterException("ERROR: PWM argument out of range - must be between 0 and 1023");
+        if (channel != 0 && channel != 1) throw new InvalidParameterException("Error: PWM channel must be 0 or 1");
+        return submit(create(plate, ScheduledOutput.Kind.DAQC_PWM, channel, value, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+    /**
+     * Turns one color of a DAQCPlate's bi-color LED on or off after a delay
+     * @param plate the plate
+     * @param led the color
+     * @param on true to turn the LED on, false to turn it off
+     * @param delay the delay
+     * @param unit unit of delay
+     * @return the scheduled change
+     */
+    public ScheduledOutput setLED(DAQCPlate plate, BiColorLED led, boolean on, long delay, TimeUnit unit) {
+        return submit(create(plate, ScheduledOutput.Kind.DAQC_LED, led.getValue(), on ? 1 : 0, System.nanoTime() + unit.toNanos(delay)));
+    }
+
+
+    /* --------- Statistics and lifecycle --------- */
+    /**
+     * Delay between each change's scheduled time and the moment it was written, in nanoseconds
+     */
+    public TimingStatistics getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the number of commands written to the plates
+     */
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return the number of changes that did not need their own command because they were merged with others
+     */
+    public long getMerged() {
+        return merged;
+    }
+
+    /**
+     * Stops the timer thread. Changes not applied yet are discarded
+     * @throws InterruptedException if interrupted while waiting for the thread to finish
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+    }
+
+
+    /* --------- Timer wheel --------- */
+    private ScheduledOutput create(PiPlate plate, ScheduledOutput.Kind kind, int channel, int value, long deadline) {
+        return new ScheduledOutput(plate, kind, channel, value, deadline, sequence.getAndIncrement());
+    }
+
+    private ScheduledOutput submit(ScheduledOutput change) {
+        if (!running) throw new IllegalStateException("Scheduler has been shut down");
+        pending.add(change);
+        return change;
+    }
+
+    private void runWheel() {
+        List<ScheduledOutput> expired = new ArrayList<ScheduledOutput>();
+        while (running) {
+            // Wait for the end of the current tick
+            long tickEnd = startTime + (tick + 1) * tickNanos;
+            long remaining;
+            while (running && (remaining = tickEnd - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+            if (!running) break;
+
+            transferPending();
+            expireBucket(expired);
+            if (!expired.isEmpty()) {
+                fire(expired);
+                expired.clear();
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled changes into their buckets
+     */
+    private void transferPending() {
+        ScheduledOutput change;
+        while ((change = pending.poll()) != null) {
+            if (change.isCancelled()) continue;
+            long due = Math.max(0, change.deadline - startTime) / tickNanos;
+            change.remainingRounds = Math.max(0, (due - tick) / wheel.length);
+            // Changes already overdue go in the current bucket
+            int bucket = (int) (Math.max(due, tick) & mask);
+            change.next = wheel[bucket];
+            wheel[bucket] = change;
+        }
+    }
+
+    /**
+     * Takes the changes due in the current tick out of its bucket
+     */
+    private void expireBucket(List<ScheduledOutput> expired) {
+        int bucket = (int) (tick & mask);
+        ScheduledOutput previous = null;
+        ScheduledOutput change = wheel[bucket];
+        while (change != null) {
+            ScheduledOutput next = change.next;
+            if (change.isCancelled() || change.remainingRounds <= 0) {
+                if (previous == null) wheel[bucket] = next; else previous.next = next;
+                change.next = null;
+                if (!change.isCancelled()) expired.add(change);
+            } else {
+                change.remainingRounds--;
+                previous = change;
+            }
+            change = next;
+        }
+    }
+
+    /**
+     * Writes the expired changes, merging the ones that target the same plate
+     */
+    private void fire(List<ScheduledOutput> expired) {
+        Collections.sort(expired, DEADLINE_ORDER);
+
+        // The two halves of a pulse must never be merged, or the relay would not close at all.
+        // If both are due in this tick, the opening half waits for the next one
+        Set<ScheduledOutput> firing = Collections.newSetFromMap(new IdentityHashMap<ScheduledOutput, Boolean>());
+        firing.addAll(expired);
+        Map<PiPlate, List<ScheduledOutput>> byPlate = new LinkedHashMap<PiPlate, List<ScheduledOutput>>();
+        for (ScheduledOutput change : expired) {
+            if (change.kind == ScheduledOutput.Kind.RELAY_OFF && change.linked != null && firing.contains(change.linked)) {
+                pending.add(change);
+                continue;
+            }
+            List<ScheduledOutput> changes = byPlate.get(change.plate);
+            if (changes == null) {
+                changes = new ArrayList<ScheduledOutput>();
+                byPlate.put(change.plate, changes);
+            }
+            changes.add(change);
+        }
+
+        for (List<ScheduledOutput> changes : byPlate.values()) {
+            try {
+                int commands = applyMerged(changes);
+                writes += commands;
+                merged += changes.size() - commands;
+            } catch (PiPlateException | RuntimeException e) {
+                log.error("Error applying scheduled output change", e);
+            }
+        }
+    }
+
+    /**
+     * Applies all the changes to one plate, keeping only the last value of each output
+     * @return the number of commands written
+     */
+    private int applyMerged(List<ScheduledOutput> changes) throws PiPlateException {
+        // Last change wins for each output. Relays are indexed 1..7, the rest use their channel
+        ScheduledOutput[] relays = new ScheduledOutput[8];
+        Map<ScheduledOutput.Kind, ScheduledOutput[]> others = new EnumMap<ScheduledOutput.Kind, ScheduledOutput[]>(ScheduledOutput.Kind.class);
+        int relayCount = 0;
+        for (ScheduledOutput change : changes) {
+            if (change.kind == ScheduledOutput.Kind.RELAY_ON || change.kind == ScheduledOutput.Kind.RELAY_OFF) {
+                if (relays[change.channel] == null) relayCount++;
+                relays[change.channel] = change;
+            } else {
+                ScheduledOutput[] latest = others.get(change.kind);
+                if (latest == null) {
+                    latest = new ScheduledOutput[2];
+                    others.put(change.kind, latest);
+                }
+                latest[change.channel] = change;
+            }
+        }
+
+        int commands = 0;
+        if (relayCount < MIN_RELAYS_TO_MERGE) {
+            for (ScheduledOutput change : relays) {
+                if (change != null) {
+                    write(change);
+                    commands++;
+                }
+            }
+        } else {
+            // relayState() + relayAll() is two commands, so this only pays off from three relays on
+            RELAYPlate plate = (RELAYPlate) changes.get(0).plate;
+            int state = plate.relayState() & 0x7F;
+            for (int relay = 1; relay <= 7; relay++) {
+                if (relays[relay] == null) continue;
+                if (relays[relay].kind == ScheduledOutput.Kind.RELAY_ON) state |= 1 << (relay - 1);
+                else state &= ~(1 << (relay - 1));
+            }
+            long now = System.nanoTime();
+            plate.relayAll(state);
+            commands += 2;
+            for (ScheduledOutput change : relays) {
+                if (change != null) completed(change, now);
+            }
+        }
+
+        for (ScheduledOutput[] latest : others.values()) {
+            for (ScheduledOutput change : latest) {
+                if (change != null) {
+                    write(change);
+                    commands++;
+                }
+            }
+        }
+
+        // Changes overridden by a later one in the same tick still count as applied
+        for (ScheduledOutput change : changes) {
+            if (!change.isDone()) change.markDone();
+        }
+        return commands;
+    }
+
+    /**
+     * Writes a single change to its plate
+     */
+    private void write(ScheduledOutput change) throws PiPlateException {
+        long now = System.nanoTime();
+        switch (change.kind) {
+            case RELAY_ON:
+                ((RELAYPlate) change.plate).relayOn(change.channel);
+                break;
+            case RELAY_OFF:
+                ((RELAYPlate) change.plate).relayOff(change.channel);
+                break;
+            case RELAY_LED:
+                if (change.value != 0) ((RELAYPlate) change.plate).setLED(); else ((RELAYPlate) change.plate).clearLED();
+                break;
+            case DAQC_PWM:
+                ((DAQCPlate) change.plate).setPWM(change.channel, change.value);
+                break;
+            case DAQC_LED:
+                BiColorLED led = change.channel == BiColorLED.RED.getValue() ? BiColorLED.RED : BiColorLED.GREEN;
+                if (change.value != 0) ((DAQCPlate) change.plate).setLED(led); else ((DAQCPlate) change.plate).clearLED(led);
+                break;
+        }
+        completed(change, now);
+    }
+
+    private void completed(ScheduledOutput change, long writeTime) {
+        latency.record(writeTime - change.deadline);
+        change.markDone();
+    }
+
+    private void validateRelay(int relay) throws InvalidParameterException {
+        if (relay < 1 || relay > 7) throw new InvalidParameterException("Relay parameter must be in the range [1..7]");
+    }
+}
@@ -0,0 +1,79 @@
+package com.nahuellofeudo.piplates.scheduler;
+
+import com.nahuellofeudo.piplates.PiPlate;
+
+/**
+ * An output change waiting in an OutputScheduler. Also the node of the timer wheel's bucket lists.
+ */
+public class ScheduledOutput {
+    /**
+     * The kinds of output change the scheduler can apply
+     */
+    enum Kind {
+        RELAY_ON,
+        RELAY_OFF,
+        RELAY_LED,
+        DAQC_PWM,
+        DAQC_LED
+    }
+
+    final PiPlate plate;
+    final Kind kind;
+    final int channel;
+    final int value;
+    final long deadline;
+    final long sequence;
+
+    // Wheel bookkeeping, only touched by the timer thread
+    long remainingRounds;
+    ScheduledOutput next;
+
+    // The other half of a relay pulse, cancelled together with this one
+    ScheduledOutput linked;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+
+    ScheduledOutput(PiPlate plate, Kind kind, int channel, int value, long deadline, long sequence) {
+        this.plate = plate;
+        this.kind = kind;
+        this.channel = channel;
+        this.value = value;
+        this.deadline = deadline;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Cancels the change (and the other half of a relay pulse) if it has not been applied yet
+     * @return true if the change was cancelled before being applied
+     */
+    public boolean cancel() {
+        cancelled = true;
+        if (linked != null) linked.cancelled = true;
+        return !done;
+    }
+
+    /**
+     * @return true if the change was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the change has been written to the plate
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the time the change is due, in System.nanoTime() units
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    void markDone() {
+        done = true;
+    }
+}
@@ -0,0 +1,89 @@
+package com.nahuellofeudo.piplates.server;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of one client of the PlateServer. The buffers are only touched by the selector thread.
+ */
+class ClientConnection {
+    private static final int INPUT_SIZE = 1024;
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    final ByteBuffer input = ByteBuffer.allocate(INPUT_SIZE);
+    final ByteBuffer output;
+    volatile boolean closed;
+    long dropped;
+    // A batch of writes is waiting for the bus thread. Reading is paused until it's acknowledged
+    boolean writesPending;
+
+    ClientConnection(SocketChannel channel, SelectionKey key, int outputSize) {
+        this.channel = channel;
+        this.key = key;
+        this.output = ByteBuffer.allocate(outputSize);
+    }
+
+    /**
+     * Queues a SAMPLE message, or drops it if the client's buffer is full
+     */
+    void sample(int plateType, int address, int source, int channel, long time, int value) {
+        if (!reserve(17)) return;
+        output.put((byte) Protocol.SAMPLE).put((byte) plateType).put((byte) address).put((byte) source).put((byte) channel);
+        output.putLong(time).putInt(value);
+    }
+
+    /**
+     * Queues a WRITE_ACK message, or drops it if the client's buffer is full
+     */
+    void writeAck(int applied, int failed) {
+        if (!reserve(5)) return;
+        output.put((byte) Protocol.WRITE_ACK).putShort((short) applied).putShort((short) failed);
+    }
+
+    /**
+     * Queues an ERROR message, or drops it if the client's buffer is full
+     */
+    void error(int code, int type) {
+        if (!reserve(3)) return;
+        output.put((byte) Protocol.ERROR).put((byte) code).put((byte) type);
+    }
+
+    /**
+     * Stops reading from the client while its batch of writes is waiting for the bus, so the kernel's socket buffers
+     * push back on a client that sends writes faster than the bus can apply them
+     */
+    void pauseReading() {
+        writesPending = true;
+        if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Resumes reading after the pending batch of writes was applied
+     */
+    void resumeReading() {
+        writesPending = false;
+        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return the interest set to use once the output buffer is empty
+     */
+    int idleInterest() {
+        return writesPending ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * @return true if there is room for a message of the given size
+     */
+    private boolean reserve(int size) {
+        if (closed) return false;
+        if (output.remaining() < size) {
+            dropped++;
+            return false;
+        }
+        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        return true;
+    }
+}
@@ -0,0 +1,562 @@
+package com.nahuellofeudo.piplates.server;
+
+import com.nahuellofeudo.piplates.PiPlate;
+import com.nahuellofeudo.piplates.PiPlateException;
+import com.nahuellofeudo.piplates.daqcplate.BiColorLED;
+import com.nahuellofeudo.piplates.daqcplate.DAQCPlate;
+import com.nahuellofeudo.piplates.relayplate.RELAYPlate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares a set of plates with local clients over TCP, using the binary protocol described in Protocol.
+ *
+ * One selector thread serves all the clients. A separate bus thread owns the plates: it polls each subscribed source
+ * when a subscriber is due, fans the value out to every subscriber of that source that is (nearly) due, and applies
+ * each client's batches of writes.
+ * Each client has a bounded output buffer; messages that don't fit are dropped (and counted) so a slow client
+ * can't hold up the others. Each client has at most one batch of writes waiting for the bus: the server stops reading
+ * from it until the batch is acknowledged.
+ */
+public class PlateServer implements Closeable {
+    static Logger log = LoggerFactory.getLogger(PlateServer.class);
+
+    public static final int DEFAULT_OUTPUT_BUFFER = 16384;
+
+    // Commands (subscription changes, write batches) the bus thread runs before checking subscriptions again
+    private static final int MAX_COMMANDS_PER_POLL = 8;
+
+    // How long to stop accepting clients after accept() fails
+    private static final long ACCEPT_PAUSE_MILLIS = 100;
+
+    private final DAQCPlate[] daqcPlates = new DAQCPlate[8];
+    private final RELAYPlate[] relayPlates = new RELAYPlate[8];
+    private final int outputBufferSize;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread selectorThread;
+    private final Thread busThread;
+    private volatile boolean running = true;
+
+    // Work for the bus thread, and its subscriptions
+    private final BlockingQueue<Runnable> busCommands = new LinkedBlockingQueue<Runnable>();
+    private final Map<Integer, PollGroup> groups = new HashMap<Integer, PollGroup>();
+
+    // Work for the selector thread
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Set<ClientConnection> clients = new HashSet<ClientConnection>();
+    private long acceptPausedUntil;
+
+    /**
+     * Opens the server socket and starts serving
+     * @param address the address to listen on, e.g. new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000)
+     * @param plates the plates to share. The server takes ownership of them: other code should not use them directly
+     * @param outputBufferSize size of each client's output buffer, in bytes
+     * @throws IOException if the socket can't be opened
+     */
+    public PlateServer(InetSocketAddress address, Collection<? extends PiPlate> plates, int outputBufferSize) throws IOException {
+        for (PiPlate plate : plates) {
+            if (plate instanceof DAQCPlate) daqcPlates[plate.address] = (DAQCPlate) plate;
+            else if (plate instanceof RELAYPlate) relayPlates[plate.address] = (RELAYPlate) plate;
+            else throw new IllegalArgumentException("Unsupported plate " + plate.getClass().getSimpleName());
+        }
+        this.outputBufferSize = outputBufferSize;
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(address, 256);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector();
+            }
+        }, "piplates-server-selector");
+        busThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBus();
+            }
+        }, "piplates-server-bus");
+        selectorThread.setDaemon(true);
+        busThread.setDaemon(true);
+        selectorThread.start();
+        busThread.start();
+        log.info("Plate server listening on {}", server.getLocalAddress());
+    }
+
+    /**
+     * Constructor with the default output buffer size
+     */
+    public PlateServer(InetSocketAddress address, Collection<? extends PiPlate> plates) throws IOException {
+        this(address, plates, DEFAULT_OUTPUT_BUFFER);
+    }
+
+    /**
+     * @return the address the server is listening on
+     * @throws IOException if the socket is closed
+     */
+    public SocketAddress getLocalAddress() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    /**
+     * Stops both threads and disconnects all clients
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        // Don't interrupt the bus thread: an interrupt in the middle of a bus transaction can break the transport
+        // (e.g. the lock file of a CrossProcessTransport) for every other user in this JVM
+        busCommands.add(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            selectorThread.join();
+            busThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /* --------- Selector thread --------- */
+    private void runSelector() {
+        try {
+            while (running) {
+                if (acceptPausedUntil == 0) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(acceptPausedUntil - System.nanoTime())));
+                    if (System.nanoTime() - acceptPausedUntil >= 0) {
+                        server.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+                        acceptPausedUntil = 0;
+                    }
+                }
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) accept();
+                        if (key.isValid() && key.isReadable()) read((ClientConnection) key.attachment());
+                        if (key.isValid() && key.isWritable()) write((ClientConnection) key.attachment());
+                    } catch (IOException e) {
+                        if (key.attachment() == null) {
+                            pauseAccepting(key, e);
+                        } else {
+                            disconnect((ClientConnection) key.attachment());
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Plate server stopped", e);
+        } finally {
+            for (ClientConnection client : new ArrayList<ClientConnection>(clients)) {
+                disconnect(client);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                log.error("Error closing plate server", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            SelectionKey key;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            ClientConnection client = new ClientConnection(channel, key, outputBufferSize);
+            key.attach(client);
+            clients.add(client);
+        }
+    }
+
+    /**
+     * Stops accepting clients for a while after accept() fails (typically because we ran out of file descriptors).
+     * The pending connection would make the selector fail again right away, and existing clients keep being served
+     */
+    private void pauseAccepting(SelectionKey key, IOException e) {
+        log.warn("Error accepting client. Not accepting new clients for " + ACCEPT_PAUSE_MILLIS + "ms", e);
+        key.interestOps(0);
+        acceptPausedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_PAUSE_MILLIS);
+        if (acceptPausedUntil == 0) acceptPausedUntil = 1;
+    }
+
+    private void read(ClientConnection client) throws IOException {
+        if (client.channel.read(client.input) < 0) {
+            disconnect(client);
+            return;
+        }
+
+        ByteBuffer input = client.input;
+        input.flip();
+        ByteBuffer writes = null;
+        while (input.hasRemaining()) {
+            int type = input.get(input.position()) & 0xFF;
+            int size = Protocol.requestSize(type);
+            if (size < 0) {
+                // Can't find the next frame boundary: drop the client
+                client.error(Protocol.ERROR_UNKNOWN_MESSAGE, type);
+                write(client);
+                disconnect(client);
+                return;
+            }
+            if (input.remaining() < size) break;
+
+            input.get();
+            int plateType = input.get() & 0xFF;
+            int address = input.get() & 0xFF;
+            if (type == Protocol.WRITE) {
+                if (writes == null) writes = ByteBuffer.allocate(input.capacity());
+                writes.put((byte) plateType).put((byte) address).put(input.get()).put(input.get()).putShort(input.getShort());
+            } else {
+                int source = input.get() & 0xFF;
+                int channel = input.get() & 0xFF;
+                int interval = type == Protocol.SUBSCRIBE ? input.getShort() & 0xFFFF : 0;
+                subscribe(client, type, plateType, address, source, channel, interval);
+            }
+        }
+        input.compact();
+
+        if (writes != null) {
+            writes.flip();
+            final ClientConnection target = client;
+            final ByteBuffer batch = writes;
+            client.pauseReading();
+            busCommands.add(new Runnable() {
+                @Override
+                public void run() {
+                    applyWrites(target, batch);
+                }
+            });
+        }
+    }
+
+    private void write(ClientConnection client) throws IOException {
+        client.output.flip();
+        client.channel.write(client.output);
+        client.output.compact();
+        if (client.output.position() == 0 && client.key.isValid()) {
+            client.key.interestOps(client.idleInterest());
+        }
+    }
+
+    private void disconnect(final ClientConnection client) {
+        if (client.closed) return;
+        client.closed = true;
+        clients.remove(client);
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            log.debug("Error closing client", e);
+        }
+        if (client.dropped > 0) log.debug("Client disconnected after dropping {} messages", client.dropped);
+        busCommands.add(new Runnable() {
+            @Override
+            public void run() {
+                removeClient(client);
+            }
+        });
+    }
+
+    /**
+     * Validates a SUBSCRIBE or UNSUBSCRIBE request and hands it to the bus thread
+     */
+    private void subscribe(final ClientConnection client, final int type, int plateType, int address, final int source,
+                           int requestedChannel, int interval) {
+        final PiPlate plate = findPlate(plateType, address);
+        if (plate == null) {
+            client.error(Protocol.ERROR_NO_SUCH_PLATE, type);
+            return;
+        }
+        if (!validSource(plateType, source, requestedChannel)) {
+            client.error(Protocol.ERROR_INVALID_SOURCE, type);
+            return;
+        }
+
+        // Sources that read the whole plate ignore the channel. Don't let it split them into separate bus reads
+        final int channel = source == Protocol.SOURCE_DIN || source == Protocol.SOURCE_RELAYS ? 0 : requestedChannel;
+
+        final int key = PollGroup.key(plateType, address, source, channel);
+        final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, interval));
+        final int finalPlateType = plateType;
+        busCommands.add(new Runnable() {
+            @Override
+            public void run() {
+                if (type == Protocol.SUBSCRIBE) {
+                    addSubscriber(key, plate, finalPlateType, source, channel, client, intervalNanos);
+                } else {
+                    removeSubscriber(key, client);
+                }
+            }
+        });
+    }
+
+    private PiPlate findPlate(int plateType, int address) {
+        if (address > 7) return null;
+        if (plateType == Protocol.DAQC) return daqcPlates[address];
+        if (plateType == Protocol.RELAY) return relayPlates[address];
+        return null;
+    }
+
+    private static boolean validSource(int plateType, int source, int channel) {
+        if (plateType == Protocol.RELAY) return source == Protocol.SOURCE_RELAYS;
+        switch (source) {
+            case Protocol.SOURCE_ADC:
+                return channel <= 8;
+            case Protocol.SOURCE_DIN:
+                return true;
+            case Protocol.SOURCE_PWM:
+                return channel <= 1;
+            default:
+                return false;
+        }
+    }
+
+
+    /* --------- Bus thread --------- */
+    private void runBus() {
+        while (running) {
+            try {
+                // Sampling comes first, so a steady stream of writes can't starve the subscriptions
+                if (nextPoll() - System.nanoTime() <= 0) pollDueGroups();
+
+                // Then a bounded number of commands, without waiting
+                int executed = 0;
+                Runnable command;
+                while (executed < MAX_COMMANDS_PER_POLL && (command = busCommands.poll()) != null) {
+                    command.run();
+                    executed++;
+                }
+                if (executed > 0) continue;
+
+                // Idle: wait for a command or for the next subscriber to be due
+                long next = nextPoll();
+                command = next == Long.MAX_VALUE
+                        ? busCommands.take()
+                        : busCommands.poll(Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (command != null) command.run();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                log.error("Error on plate server bus thread", e);
+            }
+        }
+    }
+
+    /**
+     * @return the earliest time a subscriber is due, or Long.MAX_VALUE if there are no subscriptions
+     */
+    private long nextPoll() {
+        long next = Long.MAX_VALUE;
+        for (PollGroup group : groups.values()) {
+            next = Math.min(next, group.nextDue());
+        }
+        return next;
+    }
+
+    private void addSubscriber(int key, PiPlate plate, int plateType, int source, int channel, ClientConnection client, long intervalNanos) {
+        if (client.closed) return;
+        PollGroup group = groups.get(key);
+        if (group == null) {
+            group = new PollGroup(plate, plateType, source, channel);
+            groups.put(key, group);
+        }
+        PollGroup.Subscriber subscriber = group.find(client);
+        if (subscriber == null) {
+            group.subscribers.add(new PollGroup.Subscriber(client, intervalNanos, System.nanoTime()));
+        } else {
+            subscriber.intervalNanos = intervalNanos;
+        }
+    }
+
+    private void removeSubscriber(int key, ClientConnection client) {
+        PollGroup group = groups.get(key);
+        if (group == null) return;
+        PollGroup.Subscriber subscriber = group.find(client);
+        if (subscriber != null) group.subscribers.remove(subscriber);
+        if (group.subscribers.isEmpty()) groups.remove(key);
+    }
+
+    private void removeClient(ClientConnection client) {
+        Iterator<PollGroup> iterator = groups.values().iterator();
+        while (iterator.hasNext()) {
+            PollGroup group = iterator.next();
+            PollGroup.Subscriber subscriber = group.find(client);
+            if (subscriber != null) group.subscribers.remove(subscriber);
+            if (group.subscribers.isEmpty()) iterator.remove();
+        }
+    }
+
+    /**
+     * Reads every group that has a subscriber due, once, and sends the value to all its due subscribers
+     */
+    private void pollDueGroups() {
+        for (PollGroup group : groups.values()) {
+            long now = System.nanoTime();
+            if (group.nextDue() - now > 0) continue;
+
+            final int value;
+            try {
+                value = readSource(group);
+            } catch (PiPlateException | RuntimeException e) {
+                log.error("Error reading plate", e);
+                // Try again on the next period instead of retrying immediately
+                for (PollGroup.Subscriber subscriber : group.subscribers) {
+                    if (subscriber.nextDue - now <= 0) subscriber.nextDue = now + subscriber.intervalNanos;
+                }
+                continue;
+            }
+            final long time = System.currentTimeMillis();
+
+            // Subscribers due within half their interval get this sample too. Re-anchoring them to the poll time
+            // brings everyone in the group into phase, so the bus is read once for all of them
+            now = System.nanoTime();
+            final List<ClientConnection> targets = new ArrayList<ClientConnection>();
+            for (PollGroup.Subscriber subscriber : group.subscribers) {
+                if (subscriber.nextDue - now > subscriber.intervalNanos / 2) continue;
+                targets.add(subscriber.client);
+                subscriber.nextDue = now + subscriber.intervalNanos;
+            }
+
+            final PollGroup sampled = group;
+            toSelector(new Runnable() {
+                @Override
+                public void run() {
+                    for (ClientConnection client : targets) {
+                        client.sample(sampled.plateType, sampled.plate.address, sampled.source, sampled.channel, time, value);
+                    }
+                }
+            });
+        }
+    }
+
+    private int readSource(PollGroup group) throws PiPlateException {
+        switch (group.source) {
+            case Protocol.SOURCE_ADC:
+                return ((DAQCPlate) group.plate).getADC(group.channel);
+            case Protocol.SOURCE_DIN:
+                return ((DAQCPlate) group.plate).getDINAll() & 0xFF;
+            case Protocol.SOURCE_PWM:
+                return ((DAQCPlate) group.plate).getPWM(group.channel);
+            default:
+                return ((RELAYPlate) group.plate).relayState() & 0x7F;
+        }
+    }
+
+    /**
+     * Applies one client's batch of writes and acknowledges it
+     */
+    private void applyWrites(final ClientConnection client, ByteBuffer batch) {
+        int applied = 0;
+        int failed = 0;
+        while (batch.remaining() >= 6) {
+            int plateType = batch.get() & 0xFF;
+            int address = batch.get() & 0xFF;
+            int operation = batch.get() & 0xFF;
+            int channel = batch.get() & 0xFF;
+            int value = batch.getShort() & 0xFFFF;
+            try {
+                applyWrite(findPlate(plateType, address), operation, channel, value);
+                applied++;
+            } catch (PiPlateException | RuntimeException e) {
+                log.debug("Write from client failed", e);
+                failed++;
+            }
+        }
+
+        final int finalApplied = applied;
+        final int finalFailed = failed;
+        toSelector(new Runnable() {
+            @Override
+            public void run() {
+                client.writeAck(finalApplied, finalFailed);
+                client.resumeReading();
+            }
+        });
+    }
+
+    private void applyWrite(PiPlate plate, int operation, int channel, int value) throws PiPlateException {
+        if (plate instanceof DAQCPlate) {
+            DAQCPlate daqc = (DAQCPlate) plate;
+            switch (operation) {
+                case Protocol.OP_PWM:
+                    daqc.setPWM(channel, value);
+                    return;
+                case Protocol.OP_DAC:
+                    daqc.setDAC(channel, value / 1000.0);
+                    return;
+                case Protocol.OP_LED_ON:
+                    daqc.setLED(channel == BiColorLED.RED.getValue() ? BiColorLED.RED : BiColorLED.GREEN);
+                    return;
+                case Protocol.OP_LED_OFF:
+                    daqc.clearLED(channel == BiColorLED.RED.getValue() ? BiColorLED.RED : BiColorLED.GREEN);
+                    return;
+            }
+        } else if (plate instanceof RELAYPlate) {
+            RELAYPlate relay = (RELAYPlate) plate;
+            switch (operation) {
+                case Protocol.OP_RELAY_ON:
+                    relay.relayOn(channel);
+                    return;
+                case Protocol.OP_RELAY_OFF:
+                    relay.relayOff(channel);
+                    return;
+                case Protocol.OP_RELAY_ALL:
+                    relay.relayAll(value);
+                    return;
+                case Protocol.OP_LED_ON:
+                    relay.setLED();
+                    return;
+                case Protocol.OP_LED_OFF:
+                    relay.clearLED();
+                    return;
+            }
+        } else {
+            throw new PiPlateException("No such plate");
+        }
+        throw new PiPlateException("Unsupported operation " + operation);
+    }
+
+    private void toSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,62 @@
+package com.nahuellofeudo.piplates.server;
+
+import com.nahuellofeudo.piplates.PiPlate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All the subscriptions to one plate source and channel. Each poll reads the bus once and
+ * delivers the value to every subscriber that is due. Only touched by the bus thread.
+ */
+class PollGroup {
+    final PiPlate plate;
+    final int plateType;
+    final int source;
+    final int channel;
+    final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+
+    PollGroup(PiPlate plate, int plateType, int source, int channel) {
+        this.plate = plate;
+        this.plateType = plateType;
+        this.source = source;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the earliest time a subscriber is due, or Long.MAX_VALUE if there are none
+     */
+    long nextDue() {
+        long next = Long.MAX_VALUE;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.nextDue < next) next = subscriber.nextDue;
+        }
+        return next;
+    }
+
+    Subscriber find(ClientConnection client) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.client == client) return subscriber;
+        }
+        return null;
+    }
+
+    static int key(int plateType, int address, int source, int channel) {
+        return (plateType << 24) | (address << 16) | (source << 8) | channel;
+    }
+
+    /**
+     * One client's subscription
+     */
+    static class Subscriber {
+        final ClientConnection client;
+        long intervalNanos;
+        long nextDue;
+
+        Subscriber(ClientConnection client, long intervalNanos, long nextDue) {
+            this.client = client;
+            this.intervalNanos = intervalNanos;
+            this.nextDue = nextDue;
+        }
+    }
+}
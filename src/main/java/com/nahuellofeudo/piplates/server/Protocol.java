@@ -0,0 +1,72 @@
+package com.nahuellofeudo.piplates.server;
+
+/**
+ * Message types and codes of the PlateServer protocol.
+ *
+ * Every message is a fixed-size frame that starts with its type byte. Multi-byte fields are big-endian.
+ * <pre>
+ * Client to server
+ *   SUBSCRIBE    type, plate type, address, source, channel, u16 interval (ms)         7 bytes
+ *   UNSUBSCRIBE  type, plate type, address, source, channel                            5 bytes
+ *   WRITE        type, plate type, address, operation, channel, u16 value              7 bytes
+ * Server to client
+ *   SAMPLE       type, plate type, address, source, channel, i64 time (ms), i32 value  17 bytes
+ *   WRITE_ACK    type, u16 commands applied, u16 commands failed                       5 bytes
+ *   ERROR        type, error code, type of the offending message                       3 bytes
+ * </pre>
+ * All the WRITE messages received in one read from a client are applied together as one batch and acknowledged
+ * with a single WRITE_ACK.
+ */
+public final class Protocol {
+    // Message types
+    public static final int SUBSCRIBE = 0x01;
+    public static final int UNSUBSCRIBE = 0x02;
+    public static final int WRITE = 0x03;
+    public static final int SAMPLE = 0x81;
+    public static final int WRITE_ACK = 0x82;
+    public static final int ERROR = 0x83;
+
+    // Plate types
+    public static final int DAQC = 0;
+    public static final int RELAY = 1;
+
+    // Sources that can be subscribed to
+    public static final int SOURCE_ADC = 0;         // DAQC: channel 0..8
+    public static final int SOURCE_DIN = 1;         // DAQC: all digital inputs as a bit field
+    public static final int SOURCE_PWM = 2;         // DAQC: channel 0..1
+    public static final int SOURCE_RELAYS = 3;      // RELAY: all relays as a bit field
+
+    // Write operations
+    public static final int OP_PWM = 0;             // DAQC: channel 0..1, value 0..1023
+    public static final int OP_DAC = 1;             // DAQC: channel 0..1, value in millivolts
+    public static final int OP_RELAY_ON = 2;        // RELAY: channel = relay 1..7
+    public static final int OP_RELAY_OFF = 3;       // RELAY: channel = relay 1..7
+    public static final int OP_RELAY_ALL = 4;       // RELAY: value = bit field
+    public static final int OP_LED_ON = 5;          // DAQC: channel = BiColorLED value. RELAY: channel ignored
+    public static final int OP_LED_OFF = 6;
+
+    // Error codes
+    public static final int ERROR_UNKNOWN_MESSAGE = 1;
+    public static final int ERROR_NO_SUCH_PLATE = 2;
+    public static final int ERROR_INVALID_SOURCE = 3;
+
+    /**
+     * Returns the size of a client message
+     * @param type the message type
+     * @return the size of the frame, including the type byte, or -1 for unknown types
+     */
+    public static int requestSize(int type) {
+        switch (type) {
+            case SUBSCRIBE:
+            case WRITE:
+                return 7;
+            case UNSUBSCRIBE:
+                return 5;
+            default:
+                return -1;
+        }
+    }
+
+    private Protocol() {
+    }
+}
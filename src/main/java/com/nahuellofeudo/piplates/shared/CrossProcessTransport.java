@@ -0,0 +1,171 @@
+package com.nahuellofeudo.piplates.shared;
+
+import com.nahuellofeudo.piplates.transport.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+
+/**
+ * Makes a transport safe to share between processes. Every frame runs while holding an exclusive FileChannel lock on
+ * a well-known lock file, and every response is published to a LatestValueTable so other processes can read the
+ * latest values without using the bus.
+ *
+ * The locations are taken from system properties: piplates.lock.file (default: piplates.lock in the temporary
+ * directory) and piplates.shared.table (default: /dev/shm/piplates.table, or piplates.table in the temporary
+ * directory if /dev/shm doesn't exist). All the processes must use the same files.
+ *
+ * Interrupting a thread while it takes the lock closes the lock file's channel for the whole process. The channel is
+ * then reopened and the lock taken again, so the interrupted call still runs and returns with its interrupt flag set.
+ */
+public class CrossProcessTransport implements Transport {
+    static Logger log = LoggerFactory.getLogger(CrossProcessTransport.class);
+
+    private final Transport delegate;
+    private final File lockFile;
+    private volatile FileChannel lockChannel;
+    private final LatestValueTable table;
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     * @param delegate the transport that talks to the plates
+     * @param lockFile the file used to arbitrate the bus
+     * @param table the table where responses are published
+     * @throws IOException if the lock file can't be opened
+     */
+    public CrossProcessTransport(Transport delegate, File lockFile, LatestValueTable table) throws IOException {
+        this.delegate = delegate;
+        this.lockFile = lockFile;
+        this.lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+        this.table = table;
+    }
+
+    /**
+     * Constructor using the default lock file and table
+     * @param delegate the transport that talks to the plates
+     * @throws IOException if the lock file or the table can't be opened
+     */
+    public CrossProcessTransport(Transport delegate) throws IOException {
+        this(delegate, defaultLockFile(), openTable(defaultTableFile()));
+    }
+
+    @Override
+    public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+        FileLock lock;
+        try {
+            lock = lockBus();
+        } catch (IOException e) {
+            throw new RuntimeException("Error locking the bus", e);
+        }
+
+        try {
+            delegate.exchange(packet, response, bytesToReturn, processingDelay);
+            if (bytesToReturn > 0) table.publish(packet, response, bytesToReturn, System.currentTimeMillis());
+        } finally {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                log.error("Error releasing the bus lock", e);
+            }
+        }
+    }
+
+    @Override
+    public long estimateNanos(int bytesToReturn, int processingDelay) {
+        return delegate.estimateNanos(bytesToReturn, processingDelay);
+    }
+
+    /**
+     * @return the table where this transport publishes responses
+     */
+    public LatestValueTable getTable() {
+        return table;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        try {
+            delegate.close();
+        } finally {
+            lockChannel.close();
+            table.close();
+        }
+    }
+
+    /**
+     * Takes the lock on the lock file, reopening its channel if an interrupt closed it
+     */
+    private FileLock lockBus() throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel channel = lockChannel;
+                try {
+                    return channel.lock();
+                } catch (ClosedByInterruptException | FileLockInterruptionException e) {
+                    // Clear the flag so we can block on the lock again; it's restored before returning
+                    Thread.interrupted();
+                    interrupted = true;
+                } catch (ClosedChannelException e) {
+                    // Closed by an interrupt in another thread
+                    if (closed) throw e;
+                }
+                reopen(channel);
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces the lock file's channel, unless another thread already did
+     */
+    private synchronized void reopen(FileChannel failed) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (lockChannel != failed) return;
+        log.debug("Reopening the bus lock file after an interrupt");
+        failed.close();
+        lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+    }
+
+    /**
+     * Opens a LatestValueTable, turning the error a Java 8 runtime gives for its class into a readable one
+     * @param file the table's file
+     * @return the table
+     * @throws IOException if the table can't be opened, or the runtime is older than Java 11
+     */
+    static LatestValueTable openTable(File file) throws IOException {
+        try {
+            return new LatestValueTable(file);
+        } catch (UnsupportedClassVersionError e) {
+            throw new IOException("Sharing the bus between processes needs Java 11 or later", e);
+        }
+    }
+
+    /**
+     * @return the lock file all processes use to arbitrate the bus
+     */
+    public static File defaultLockFile() {
+        String path = System.getProperty("piplates.lock.file");
+        return path != null ? new File(path) : new File(System.getProperty("java.io.tmpdir"), "piplates.lock");
+    }
+
+    /**
+     * @return the file all processes share the latest values through
+     */
+    public static File defaultTableFile() {
+        String path = System.getProperty("piplates.shared.table");
+        if (path != null) return new File(path);
+        File shm = new File("/dev/shm");
+        return shm.isDirectory() ? new File(shm, "piplates.table") : new File(System.getProperty("java.io.tmpdir"), "piplates.table");
+    }
+}
@@ -0,0 +1,107 @@
+package com.nahuellofeudo.piplates.shared;
+
+import com.nahuellofeudo.piplates.daqcplate.DAQCPlate;
+import com.nahuellofeudo.piplates.relayplate.RELAYPlate;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the latest values other processes have read from the plates, from the shared LatestValueTable.
+ * Never touches the bus, so it doesn't need to run as root or to create any plate object.
+ */
+public class SharedReadings implements Closeable {
+    private final LatestValueTable table;
+
+    /**
+     * Constructor
+     * @param table the shared table
+     */
+    public SharedReadings(LatestValueTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Opens the default shared table (see CrossProcessTransport)
+     * @return the readings
+     * @throws IOException if the table can't be opened, or the runtime is older than Java 11
+     */
+    public static SharedReadings open() throws IOException {
+        return new SharedReadings(CrossProcessTransport.openTable(CrossProcessTransport.defaultTableFile()));
+    }
+
+    /**
+     * Returns the latest A/D value read from a DAQCPlate, either with getADC or getADCAll
+     * @param plate the plate's address [0..7]
+     * @param channel the A/D channel [0..8]
+     * @return the latest reading, or null if no process has read it yet
+     */
+    public Reading getADC(int plate, int channel) {
+        byte[] data = new byte[LatestValueTable.MAX_DATA];
+        int address = DAQCPlate.BASE_ADDRESS + plate;
+        Reading single = null;
+        long time = table.read(address, 0x30, channel, data);
+        if (time != 0) single = new Reading(DAQCPlate.decodeADC(data, 0, channel), time);
+
+        if (channel < 8) {
+            time = table.read(address, 0x31, 0, data);
+            if (time != 0 && (single == null || time > single.getTime())) {
+                return new Reading(DAQCPlate.decodeADC(data, 2 * channel, channel), time);
+            }
+        }
+        return single;
+    }
+
+    /**
+     * Returns the latest state of all digital inputs of a DAQCPlate
+     * @param plate the plate's address [0..7]
+     * @return the latest reading, or null if no process has read it yet
+     */
+    public Reading getDINAll(int plate) {
+        return readByte(DAQCPlate.BASE_ADDRESS + plate, 0x25);
+    }
+
+    /**
+     * Returns the latest state of all relays of a RELAYPlate
+     * @param plate the plate's address [0..7]
+     * @return the latest reading (relays encoded in bits 0..6), or null if no process has read it yet
+     */
+    public Reading getRelayState(int plate) {
+        return readByte(RELAYPlate.BASE_ADDRESS + plate, 0x14);
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+
+    private Reading readByte(int address, int command) {
+        byte[] data = new byte[LatestValueTable.MAX_DATA];
+        long time = table.read(address, command, 0, data);
+        return time == 0 ? null : new Reading(data[0] & 0xFF, time);
+    }
+
+    /**
+     * A value and the time it was read
+     */
+    public static class Reading {
+        private final int value;
+        private final long time;
+
+        Reading(int value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        /**
+         * @return when the value was read, in ms since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.nahuellofeudo.piplates.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Emulates spidev and the frame line so SpidevTransport can run without hardware.
+ *
+ * Buffers get made-up addresses that ioctl() resolves back to the buffers, and SPI_IOC_MESSAGE requests are decoded
+ * transfer by transfer exactly as the kernel would. The bytes sent between a rising and a falling edge of the frame
+ * line are treated as one command, and the response is taken from another Transport (for example a ReplayTransport).
+ *
+ * This class ships in the jar on purpose: paired with a ReplayTransport it lets applications exercise the whole spidev
+ * code path (transfer layout, ioctl requests, frame line) on machines without plates or Java 22.
+ */
+public class FakeSpidevIoctl implements SpidevIoctl, FramePin {
+    private static final long BASE_ADDRESS = 0x10000000L;
+
+    private final Transport plates;
+    private final TreeMap<Long, ByteBuffer> buffers = new TreeMap<Long, ByteBuffer>();
+    private long nextAddress = BASE_ADDRESS;
+    private int nextFd = 3;
+
+    private final byte[] packet = new byte[4];
+    private int commandBytes;
+    private boolean responded;
+
+    private int mode = -1;
+    private int speedHz;
+    private long ioctls;
+    private long transfers;
+    private long lastDelayUsecs;
+
+    /**
+     * Constructor
+     * @param plates the transport that provides the plates' responses
+     */
+    public FakeSpidevIoctl(Transport plates) {
+        this.plates = plates;
+    }
+
+    @Override
+    public synchronized ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        buffers.put(nextAddress, buffer);
+        // Keep allocations apart so out-of-bounds addresses are caught
+        nextAddress += (size + 0xFFF) & ~0xFFFL;
+        return buffer;
+    }
+
+    @Override
+    public synchronized long address(ByteBuffer buffer) {
+        for (Map.Entry<Long, ByteBuffer> entry : buffers.entrySet()) {
+            if (entry.getValue() == buffer) return entry.getKey();
+        }
+        throw new IllegalArgumentException("Buffer was not allocated by this SpidevIoctl");
+    }
+
+    @Override
+    public synchronized int open(String path) {
+        return nextFd++;
+    }
+
+    @Override
+    public synchronized int ioctl(int fd, long request, ByteBuffer argument) throws IOException {
+        ioctls++;
+        if (request == SpidevTransport.SPI_IOC_WR_MODE) {
+            mode = argument.get(0);
+            return 0;
+        }
+        if (request == SpidevTransport.SPI_IOC_WR_MAX_SPEED_HZ) {
+            speedHz = argument.order(ByteOrder.nativeOrder()).getInt(0);
+            return 0;
+        }
+
+        // SPI_IOC_MESSAGE(n): direction write, type 'k', number 0, size n * 32
+        if ((request & ~(0x3FFFL << 16)) != ((1L << 30) | ('k' << 8))) throw new IOException("Unsupported ioctl request 0x" + Long.toHexString(request));
+        int size = (int) ((request >> 16) & 0x3FFF);
+        if (size % SpidevTransport.TRANSFER_SIZE != 0 || size > argument.capacity()) throw new IOException("Invalid SPI_IOC_MESSAGE size " + size);
+
+        ByteBuffer array = argument.duplicate().order(ByteOrder.nativeOrder());
+        int count = size / SpidevTransport.TRANSFER_SIZE;
+        int responseStart = -1;
+        for (int x = 0; x < count; x++) {
+            int offset = x * SpidevTransport.TRANSFER_SIZE;
+            long txBuf = array.getLong(offset + SpidevTransport.TX_BUF);
+            long rxBuf = array.getLong(offset + SpidevTransport.RX_BUF);
+            int len = array.getInt(offset + SpidevTransport.LEN);
+            lastDelayUsecs = array.getShort(offset + SpidevTransport.DELAY_USECS) & 0xFFFF;
+            transfers++;
+
+            if (commandBytes < 4) {
+                for (int b = 0; b < len && commandBytes < 4; b++) {
+                    packet[commandBytes++] = txBuf == 0 ? 0 : resolve(txBuf + b).get();
+                }
+            } else if (responseStart < 0) {
+                responseStart = x;
+            }
+        }
+
+        if (responseStart >= 0) respond(array, responseStart, count);
+        return size;
+    }
+
+    @Override
+    public synchronized void close(int fd) {
+    }
+
+    @Override
+    public synchronized void high() {
+        commandBytes = 0;
+        responded = false;
+    }
+
+    @Override
+    public synchronized void low() {
+        // A command with no response phase
+        if (commandBytes == 4 && !responded) plates.exchange(packet, null, 0, 0);
+        commandBytes = 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the number of ioctl() calls
+     */
+    public synchronized long getIoctls() {
+        return ioctls;
+    }
+
+    /**
+     * @return the number of spi_ioc_transfer structs processed
+     */
+    public synchronized long getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * @return the delay_usecs of the last transfer processed
+     */
+    public synchronized long getLastDelayUsecs() {
+        return lastDelayUsecs;
+    }
+
+    /**
+     * @return the SPI mode set through SPI_IOC_WR_MODE, or -1 if it was never set
+     */
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the clock speed set through SPI_IOC_WR_MAX_SPEED_HZ
+     */
+    public synchronized int getSpeedHz() {
+        return speedHz;
+    }
+
+    /**
+     * Asks the plates for the response and writes it into the rx buffers of the remaining transfers
+     */
+    private void respond(ByteBuffer array, int first, int count) {
+        int length = 0;
+        for (int x = first; x < count; x++) {
+            length += array.getInt(x * SpidevTransport.TRANSFER_SIZE + SpidevTransport.LEN);
+        }
+        byte[] response = new byte[length];
+        plates.exchange(packet, response, length, 0);
+        responded = true;
+
+        int position = 0;
+        for (int x = first; x < count; x++) {
+            int offset = x * SpidevTransport.TRANSFER_SIZE;
+            long rxBuf = array.getLong(offset + SpidevTransport.RX_BUF);
+            int len = array.getInt(offset + SpidevTransport.LEN);
+            for (int b = 0; b < len; b++, position++) {
+                if (rxBuf != 0) resolve(rxBuf + b).put(response[position]);
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer positioned at a made-up address
+     */
+    private ByteBuffer resolve(long address) {
+        Map.Entry<Long, ByteBuffer> entry = buffers.floorEntry(address);
+        if (entry == null || address - entry.getKey() >= entry.getValue().capacity()) {
+            throw new IllegalArgumentException("Invalid buffer address 0x" + Long.toHexString(address));
+        }
+        ByteBuffer buffer = entry.getValue().duplicate();
+        buffer.position((int) (address - entry.getKey()));
+        return buffer;
+    }
+}
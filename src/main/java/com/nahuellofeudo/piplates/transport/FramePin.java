@@ -0,0 +1,18 @@
+package com.nahuellofeudo.piplates.transport;
+
+import java.io.Closeable;
+
+/**
+ * The GPIO line that frames each command sent to a plate
+ */
+public interface FramePin extends Closeable {
+    /**
+     * Raises the line at the start of a frame
+     */
+    void high();
+
+    /**
+     * Lowers the line at the end of a frame
+     */
+    void low();
+}
@@ -0,0 +1,45 @@
+package com.nahuellofeudo.piplates.transport;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary format shared by RecordingTransport and ReplayTransport.
+ *
+ * Header: int magic ("PPBR"), byte version, long wall-clock time of the first exchange (ms since the epoch).
+ * Then one record per exchange: address, command, parameter 1, parameter 2 (1 byte each),
+ * processing delay in ms, nanoseconds since the start of the previous exchange, duration of the exchange in
+ * nanoseconds, response length (all four as unsigned varints), followed by the response bytes.
+ */
+final class RecordingFormat {
+    static final int MAGIC = 0x50504252;
+    static final int VERSION = 1;
+
+    private RecordingFormat() {
+    }
+
+    /**
+     * Writes a non-negative value using 7 bits per byte, least significant group first
+     */
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a value written by writeVarLong
+     */
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint in bus recording");
+    }
+}
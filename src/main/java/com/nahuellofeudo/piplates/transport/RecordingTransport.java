@@ -0,0 +1,107 @@
+package com.nahuellofeudo.piplates.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+
+/**
+ * Passes every exchange through to another transport and records it (command, response and timing)
+ * so it can be played back later with ReplayTransport.
+ */
+public class RecordingTransport implements Transport {
+    static Logger log = LoggerFactory.getLogger(RecordingTransport.class);
+
+    private final Transport delegate;
+    private final DataOutputStream out;
+    private boolean headerWritten;
+    private boolean failed;
+    private long lastStart;
+    private long records;
+
+    /**
+     * Constructor
+     * @param delegate the transport that talks to the plates
+     * @param out the stream to write the recording to. Closed when this transport is closed
+     */
+    public RecordingTransport(Transport delegate, OutputStream out) {
+        this.delegate = delegate;
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 65536));
+    }
+
+    /**
+     * Constructor
+     * @param delegate the transport that talks to the plates
+     * @param file the file to write the recording to. Overwritten if it exists
+     * @throws IOException if the file can't be created
+     */
+    public RecordingTransport(Transport delegate, File file) throws IOException {
+        this(delegate, new FileOutputStream(file));
+    }
+
+    @Override
+    public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+        long start = System.nanoTime();
+        delegate.exchange(packet, response, bytesToReturn, processingDelay);
+        long end = System.nanoTime();
+
+        synchronized (this) {
+            if (failed) return;
+            try {
+                if (!headerWritten) {
+                    out.writeInt(RecordingFormat.MAGIC);
+                    out.writeByte(RecordingFormat.VERSION);
+                    out.writeLong(System.currentTimeMillis());
+                    lastStart = start;
+                    headerWritten = true;
+                }
+                out.write(packet, 0, 4);
+                RecordingFormat.writeVarLong(out, processingDelay);
+                RecordingFormat.writeVarLong(out, start - lastStart);
+                RecordingFormat.writeVarLong(out, end - start);
+                RecordingFormat.writeVarLong(out, bytesToReturn);
+                if (bytesToReturn > 0) out.write(response, 0, bytesToReturn);
+                lastStart = start;
+                records++;
+            } catch (IOException e) {
+                // Never let the recording break the bus
+                log.error("Error writing bus recording. Recording stopped", e);
+                failed = true;
+            }
+        }
+    }
+
+    @Override
+    public long estimateNanos(int bytesToReturn, int processingDelay) {
+        return delegate.estimateNanos(bytesToReturn, processingDelay);
+    }
+
+    /**
+     * @return the number of exchanges recorded so far
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Writes any buffered records to the output
+     * @throws IOException if the output can't be written
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Finishes the recording and closes the underlying transport
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (this) {
+                out.close();
+            }
+        } finally {
+            delegate.close();
+        }
+    }
+}
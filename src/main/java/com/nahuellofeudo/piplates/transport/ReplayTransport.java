@@ -0,0 +1,193 @@
+package com.nahuellofeudo.piplates.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves the responses captured by RecordingTransport, so real workloads can be run without any plates attached.
+ *
+ * Each command is matched against the recording in order, starting after the last exchange served; if the recorded
+ * sequence diverges, the next matching exchange (wrapping around to the start) is used instead. Commands that
+ * return no data are accepted even if they were never recorded. Reads that were never recorded fail with an
+ * IllegalStateException.
+ */
+public class ReplayTransport implements Transport {
+    static Logger log = LoggerFactory.getLogger(ReplayTransport.class);
+
+    private final Exchange[] exchanges;
+    // Longest recorded duration of each shape of exchange, sorted by shape (see shape())
+    private final long[] shapes;
+    private final long[] longestNanos;
+    private final double timeScale;
+    private int cursor;
+    private long served;
+    private long unmatched;
+
+    /**
+     * Constructor
+     * @param in stream with the recording
+     * @param timeScale multiplier for the recorded duration of each exchange: 1 reproduces the original timing,
+     *                  0.1 makes it 10 times faster and 0 returns immediately
+     * @throws IOException if the recording can't be read
+     */
+    public ReplayTransport(InputStream in, double timeScale) throws IOException {
+        if (timeScale < 0) throw new IllegalArgumentException("Time scale must not be negative");
+        this.timeScale = timeScale;
+        this.exchanges = load(new DataInputStream(new BufferedInputStream(in)));
+
+        TreeMap<Long, Long> longest = new TreeMap<Long, Long>();
+        for (Exchange exchange : exchanges) {
+            Long shape = shape(exchange.response.length, exchange.processingDelay);
+            Long current = longest.get(shape);
+            if (current == null || current < exchange.durationNanos) longest.put(shape, exchange.durationNanos);
+        }
+        shapes = new long[longest.size()];
+        longestNanos = new long[longest.size()];
+        int x = 0;
+        for (Map.Entry<Long, Long> entry : longest.entrySet()) {
+            shapes[x] = entry.getKey();
+            longestNanos[x++] = entry.getValue();
+        }
+        log.debug("Loaded {} recorded exchanges", exchanges.length);
+    }
+
+    /**
+     * Constructor
+     * @param file file with the recording
+     * @param timeScale multiplier for the recorded duration of each exchange (see above)
+     * @throws IOException if the recording can't be read
+     */
+    public ReplayTransport(File file, double timeScale) throws IOException {
+        this(new FileInputStream(file), timeScale);
+    }
+
+    @Override
+    public synchronized void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+        long start = System.nanoTime();
+
+        Exchange match = null;
+        for (int x = 0; x < exchanges.length; x++) {
+            int index = (cursor + x) % exchanges.length;
+            if (exchanges[index].matches(packet, bytesToReturn)) {
+                match = exchanges[index];
+                cursor = index + 1;
+                break;
+            }
+        }
+
+        if (match == null) {
+            if (bytesToReturn > 0) {
+                throw new IllegalStateException(String.format("No recorded response for address %d, command 0x%02X (%d, %d)",
+                        packet[0], packet[1], packet[2] & 0xFF, packet[3] & 0xFF));
+            }
+            unmatched++;
+            return;
+        }
+
+        if (bytesToReturn > 0) System.arraycopy(match.response, 0, response, 0, bytesToReturn);
+        served++;
+
+        // Reproduce the (scaled) time the exchange took on the real bus
+        long deadline = start + (long) (match.durationNanos * timeScale);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Uses the longest recorded exchange of the same shape (response length and processing delay), scaled
+     */
+    @Override
+    public long estimateNanos(int bytesToReturn, int processingDelay) {
+        int index = Arrays.binarySearch(shapes, shape(bytesToReturn, processingDelay));
+        long longest = index >= 0 ? longestNanos[index] : Transport.super.estimateNanos(bytesToReturn, processingDelay);
+        return (long) (longest * timeScale);
+    }
+
+    /**
+     * @return the number of exchanges served from the recording
+     */
+    public synchronized long getServed() {
+        return served;
+    }
+
+    /**
+     * @return the number of write commands accepted without a matching record
+     */
+    public synchronized long getUnmatched() {
+        return unmatched;
+    }
+
+    /**
+     * @return the number of exchanges in the recording
+     */
+    public int size() {
+        return exchanges.length;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Packs the response length and the processing delay of an exchange into one sortable key
+     */
+    private static long shape(int bytesToReturn, int processingDelay) {
+        return ((long) bytesToReturn << 32) | (processingDelay & 0xFFFFFFFFL);
+    }
+
+    private static Exchange[] load(DataInputStream in) throws IOException {
+        try {
+            List<Exchange> list = new ArrayList<Exchange>();
+            int first = in.read();
+            if (first < 0) return new Exchange[0];
+
+            int magic = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            if (magic != RecordingFormat.MAGIC) throw new IOException("Not a bus recording");
+            int version = in.readUnsignedByte();
+            if (version != RecordingFormat.VERSION) throw new IOException("Unsupported bus recording version " + version);
+            in.readLong();
+
+            int b;
+            while ((b = in.read()) >= 0) {
+                Exchange exchange = new Exchange();
+                exchange.packet[0] = (byte) b;
+                in.readFully(exchange.packet, 1, 3);
+                exchange.processingDelay = (int) RecordingFormat.readVarLong(in);
+                RecordingFormat.readVarLong(in);        // time since the previous exchange
+                exchange.durationNanos = RecordingFormat.readVarLong(in);
+                exchange.response = new byte[(int) RecordingFormat.readVarLong(in)];
+                in.readFully(exchange.response);
+                list.add(exchange);
+            }
+            return list.toArray(new Exchange[list.size()]);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * One recorded exchange
+     */
+    private static class Exchange {
+        final byte[] packet = new byte[4];
+        byte[] response;
+        int processingDelay;
+        long durationNanos;
+
+        boolean matches(byte[] command, int bytesToReturn) {
+            return response.length == bytesToReturn
+                    && packet[0] == command[0] && packet[1] == command[1]
+                    && packet[2] == command[2] && packet[3] == command[3];
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.nahuellofeudo.piplates.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The native calls SpidevTransport needs. Implemented with the Foreign Function &amp; Memory API by FfmSpidevIoctl
+ * (built only with Java 22 or later) and emulated by FakeSpidevIoctl.
+ */
+public interface SpidevIoctl {
+    /**
+     * Allocates an off-heap buffer that stays at the same native address until the implementation is discarded
+     * @param size size of the buffer in bytes
+     * @return a direct buffer in native byte order
+     */
+    ByteBuffer allocate(int size);
+
+    /**
+     * Returns the native address of a buffer returned by allocate()
+     * @param buffer the buffer
+     * @return its address, to be used in the tx_buf and rx_buf fields of spi_ioc_transfer
+     */
+    long address(ByteBuffer buffer);
+
+    /**
+     * Opens a device for reading and writing
+     * @param path the device path, e.g. /dev/spidev0.1
+     * @return the file descriptor
+     * @throws IOException if the device can't be opened
+     */
+    int open(String path) throws IOException;
+
+    /**
+     * Calls ioctl() on a file descriptor
+     * @param fd the file descriptor
+     * @param request the request code
+     * @param argument the buffer passed by reference (a slice of a buffer returned by allocate())
+     * @return the value returned by ioctl()
+     * @throws IOException if ioctl() fails
+     */
+    int ioctl(int fd, long request, ByteBuffer argument) throws IOException;
+
+    /**
+     * Closes a file descriptor
+     * @param fd the file descriptor
+     * @throws IOException if close() fails
+     */
+    void close(int fd) throws IOException;
+}
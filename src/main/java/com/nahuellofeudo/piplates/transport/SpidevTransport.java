@@ -0,0 +1,221 @@
+package com.nahuellofeudo.piplates.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Talks to the plates through the kernel's spidev driver (/dev/spidev*), without Pi4J or WiringPi.
+ *
+ * Each frame is queued as an array of one-byte spi_ioc_transfer structs (Chip Select toggles between bytes, as the
+ * plates expect) and sent with a single SPI_IOC_MESSAGE ioctl. The command and response phases share one ioctl when
+ * the plate's processing delay fits in the 16-bit delay_usecs field; longer delays split them in two.
+ * All buffers and transfer structs are allocated off-heap once and reused.
+ */
+public class SpidevTransport implements Transport {
+    static Logger log = LoggerFactory.getLogger(SpidevTransport.class);
+
+    public static final String DEFAULT_DEVICE = "/dev/spidev0.1";
+    public static final int DEFAULT_SPEED = 500000;
+
+    // Largest response we can read in one frame
+    public static final int MAX_RESPONSE = 256;
+
+    // Layout of struct spi_ioc_transfer (linux/spi/spidev.h)
+    static final int TRANSFER_SIZE = 32;
+    static final int TX_BUF = 0;
+    static final int RX_BUF = 8;
+    static final int LEN = 16;
+    static final int SPEED_HZ = 20;
+    static final int DELAY_USECS = 24;
+    static final int BITS_PER_WORD = 26;
+    static final int CS_CHANGE = 27;
+
+    // ioctl request codes
+    static final long SPI_IOC_WR_MODE = 0x40016B01L;
+    static final long SPI_IOC_WR_MAX_SPEED_HZ = 0x40046B04L;
+
+    private static final int COMMAND_LENGTH = 4;
+    private static final int MAX_DELAY_USECS = 0xFFFF;
+    // Gap between bytes, and between raising Frame and the first byte / lowering it after the last
+    private static final int BYTE_DELAY_USECS = 20;
+    private static final long FRAME_SETTLE_NANOS = 1000000;
+
+    // Rough cost of one ioctl() system call
+    private static final long IOCTL_NANOS = 50000;
+
+    private final SpidevIoctl ioctl;
+    private final FramePin frame;
+    private final long byteNanos;
+    private final int fd;
+    private final ByteBuffer transfers;
+    private final ByteBuffer responseTransfers;
+    private final ByteBuffer tx;
+    private final ByteBuffer rx;
+    private final long[] messageRequests = new long[COMMAND_LENGTH + MAX_RESPONSE + 1];
+
+    /**
+     * Opens the SPI device and configures it for the plates (mode 0, 8 bits per word)
+     * @param ioctl the native calls to use
+     * @param device the spidev device, e.g. /dev/spidev0.1
+     * @param speedHz the clock speed
+     * @param frame the frame line
+     * @throws IOException if the device can't be opened or configured
+     */
+    public SpidevTransport(SpidevIoctl ioctl, String device, int speedHz, FramePin frame) throws IOException {
+        this.ioctl = ioctl;
+        this.frame = frame;
+        this.byteNanos = 8 * 1000000000L / speedHz + BYTE_DELAY_USECS * 1000L;
+
+        tx = ioctl.allocate(COMMAND_LENGTH);
+        rx = ioctl.allocate(MAX_RESPONSE);
+        transfers = ioctl.allocate((COMMAND_LENGTH + MAX_RESPONSE) * TRANSFER_SIZE);
+        ByteBuffer tail = transfers.duplicate();
+        tail.position(COMMAND_LENGTH * TRANSFER_SIZE);
+        responseTransfers = tail.slice().order(ByteOrder.nativeOrder());
+
+        // The transfers never change except for delays and the final cs_change, so fill them in once
+        long txAddress = ioctl.address(tx);
+        long rxAddress = ioctl.address(rx);
+        for (int x = 0; x < COMMAND_LENGTH + MAX_RESPONSE; x++) {
+            int offset = x * TRANSFER_SIZE;
+            boolean command = x < COMMAND_LENGTH;
+            transfers.putLong(offset + TX_BUF, command ? txAddress + x : 0);
+            transfers.putLong(offset + RX_BUF, command ? 0 : rxAddress + x - COMMAND_LENGTH);
+            transfers.putInt(offset + LEN, 1);
+            transfers.putInt(offset + SPEED_HZ, speedHz);
+            transfers.putShort(offset + DELAY_USECS, (short) BYTE_DELAY_USECS);
+            transfers.put(offset + BITS_PER_WORD, (byte) 8);
+            transfers.put(offset + CS_CHANGE, (byte) 1);
+        }
+        for (int x = 0; x < messageRequests.length; x++) {
+            messageRequests[x] = spiIocMessage(x);
+        }
+
+        fd = ioctl.open(device);
+        try {
+            ByteBuffer mode = ioctl.allocate(1);
+            mode.put(0, (byte) 0);
+            ioctl.ioctl(fd, SPI_IOC_WR_MODE, mode);
+            ByteBuffer speed = ioctl.allocate(4);
+            speed.putInt(0, speedHz);
+            ioctl.ioctl(fd, SPI_IOC_WR_MAX_SPEED_HZ, speed);
+        } catch (IOException e) {
+            ioctl.close(fd);
+            throw e;
+        }
+        log.debug("Opened {} at {}Hz", device, speedHz);
+    }
+
+    /**
+     * Creates a transport with the FFM implementation of the native calls, configured from system properties:
+     * piplates.spidev.device (default /dev/spidev0.1), piplates.spidev.speed (default 500000) and
+     * piplates.spidev.framepin (BCM pin number, default 25)
+     * @return the transport
+     * @throws IOException if the device or the frame pin can't be opened, or this build has no FFM support
+     */
+    public static SpidevTransport open() throws IOException {
+        SpidevIoctl ioctl;
+        try {
+            ioctl = (SpidevIoctl) Class.forName("com.nahuellofeudo.piplates.transport.FfmSpidevIoctl")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+            throw new IOException("The spidev transport needs a build and a runtime with Java 22 or later", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Error loading the FFM bindings", e);
+        }
+
+        String device = System.getProperty("piplates.spidev.device", DEFAULT_DEVICE);
+        int speed = Integer.getInteger("piplates.spidev.speed", DEFAULT_SPEED);
+        int pin = Integer.getInteger("piplates.spidev.framepin", SysfsFramePin.DEFAULT_PIN);
+        return new SpidevTransport(ioctl, device, speed, new SysfsFramePin(pin));
+    }
+
+    @Override
+    public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+        if (bytesToReturn > MAX_RESPONSE) throw new IllegalArgumentException("Responses are limited to " + MAX_RESPONSE + " bytes");
+        tx.put(0, packet[0]).put(1, packet[1]).put(2, packet[2]).put(3, packet[3]);
+
+        frame.high();
+        pause(FRAME_SETTLE_NANOS);
+        try {
+            long delayUsecs = processingDelay * 1000L;
+            if (bytesToReturn == 0) {
+                send(transfers, COMMAND_LENGTH);
+            } else if (delayUsecs <= MAX_DELAY_USECS) {
+                // Command and response in a single ioctl; the plate's processing time goes after the last command byte
+                setDelay(COMMAND_LENGTH - 1, (int) delayUsecs);
+                try {
+                    send(transfers, COMMAND_LENGTH + bytesToReturn);
+                } finally {
+                    setDelay(COMMAND_LENGTH - 1, BYTE_DELAY_USECS);
+                }
+            } else {
+                send(transfers, COMMAND_LENGTH);
+                pause(delayUsecs * 1000);
+                send(responseTransfers, bytesToReturn);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error transferring data over SPI", e);
+        } finally {
+            frame.low();
+            pause(FRAME_SETTLE_NANOS);
+        }
+
+        for (int x = 0; x < bytesToReturn; x++) {
+            response[x] = rx.get(x);
+        }
+    }
+
+    @Override
+    public long estimateNanos(int bytesToReturn, int processingDelay) {
+        long processing = bytesToReturn > 0 ? processingDelay * 1000000L : 0;
+        return 2 * FRAME_SETTLE_NANOS + 2 * IOCTL_NANOS + processing + (COMMAND_LENGTH + bytesToReturn) * byteNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ioctl.close(fd);
+        } finally {
+            frame.close();
+        }
+    }
+
+    /**
+     * Computes SPI_IOC_MESSAGE(count): _IOW('k', 0, char[count * sizeof(struct spi_ioc_transfer)])
+     */
+    static long spiIocMessage(int count) {
+        return (1L << 30) | ((long) count * TRANSFER_SIZE << 16) | ('k' << 8);
+    }
+
+    /**
+     * Sends the first count transfers of a transfer array in one ioctl
+     */
+    private void send(ByteBuffer array, int count) throws IOException {
+        // Chip Select must stay deselected after the last transfer
+        int last = (count - 1) * TRANSFER_SIZE + CS_CHANGE;
+        array.put(last, (byte) 0);
+        try {
+            ioctl.ioctl(fd, messageRequests[count], array);
+        } finally {
+            array.put(last, (byte) 1);
+        }
+    }
+
+    private void setDelay(int transfer, int usecs) {
+        transfers.putShort(transfer * TRANSFER_SIZE + DELAY_USECS, (short) usecs);
+    }
+
+    private static void pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
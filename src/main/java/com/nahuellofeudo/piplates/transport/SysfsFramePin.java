@@ -0,0 +1,68 @@
+package com.nahuellofeudo.piplates.transport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Drives the frame line through /sys/class/gpio. Needs write access to the GPIO files (e.g. membership
+ * of the gpio group) rather than root.
+ */
+public class SysfsFramePin implements FramePin {
+    // The frame line is wiringPi pin 6
+    public static final int DEFAULT_PIN = 25;
+
+    private final FileChannel value;
+    private final ByteBuffer one = ByteBuffer.wrap(new byte[] {'1'});
+    private final ByteBuffer zero = ByteBuffer.wrap(new byte[] {'0'});
+
+    /**
+     * Exports the pin if necessary and configures it as an output, initially low
+     * @param pin the pin number, in BCM numbering
+     * @throws IOException if the pin can't be configured
+     */
+    public SysfsFramePin(int pin) throws IOException {
+        File gpio = new File("/sys/class/gpio/gpio" + pin);
+        if (!gpio.exists()) {
+            write(new File("/sys/class/gpio/export"), Integer.toString(pin));
+        }
+        write(new File(gpio, "direction"), "low");
+        value = new RandomAccessFile(new File(gpio, "value"), "rw").getChannel();
+    }
+
+    @Override
+    public void high() {
+        set(one);
+    }
+
+    @Override
+    public void low() {
+        set(zero);
+    }
+
+    @Override
+    public void close() throws IOException {
+        value.close();
+    }
+
+    private void set(ByteBuffer level) {
+        try {
+            level.rewind();
+            value.write(level, 0);
+        } catch (IOException e) {
+            throw new RuntimeException("Error setting frame pin", e);
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+}
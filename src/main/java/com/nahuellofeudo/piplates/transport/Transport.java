@@ -0,0 +1,30 @@
+package com.nahuellofeudo.piplates.transport;
+
+import java.io.Closeable;
+
+/**
+ * Moves command frames between PiPlate and the plates.
+ * PiPlate only calls exchange() while holding the bus lock, so implementations don't need to synchronize it.
+ */
+public interface Transport extends Closeable {
+    /**
+     * Runs one complete frame: sends a command and, optionally, reads back the plate's response
+     * @param packet the 4 command bytes: address, command, parameter 1, parameter 2
+     * @param response buffer where the response is stored. May be null if bytesToReturn is 0
+     * @param bytesToReturn number of bytes to read back from the plate
+     * @param processingDelay milliseconds the plate needs between receiving the command and sending the response
+     */
+    void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay);
+
+    /**
+     * Estimates how long exchange() will take, so bus reservations can keep other transactions out of reserved slots.
+     * The default assumes 1ms of framing on each side of the transaction and 100us per byte
+     * @param bytesToReturn number of bytes read back from the plate
+     * @param processingDelay milliseconds the plate needs between receiving the command and sending the response
+     * @return the estimated duration, in nanoseconds
+     */
+    default long estimateNanos(int bytesToReturn, int processingDelay) {
+        long millis = 2 + (bytesToReturn > 0 ? processingDelay : 0);
+        return millis * 1000000L + (4 + bytesToReturn) * 100000L;
+    }
+}
@@ -0,0 +1,117 @@
+package com.nahuellofeudo.piplates.transport;
+
+import com.pi4j.io.gpio.*;
+import com.pi4j.wiringpi.Spi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Talks to the plates through Pi4J and WiringPi. Needs to run as root on a Raspberry Pi.
+ */
+public class WiringPiTransport implements Transport {
+    static Logger log = LoggerFactory.getLogger(WiringPiTransport.class);
+
+    private final GpioPinDigitalOutput frame;
+    private final GpioPinDigitalInput interrupt;
+    private final byte[] dummy = new byte[1];
+
+    // Measured costs, as moving averages: each byte transferred (JNI call plus the pause after it), and the
+    // framing around a transaction (the 1ms pauses, which the OS rounds up, plus toggling the frame pin)
+    private volatile long byteNanos = 1100000;
+    private volatile long framingNanos = 2200000;
+
+    /**
+     * Configures the GPIO pins for Frame and Interrupt, and initializes the SPI bus
+     */
+    public WiringPiTransport() {
+        log.debug("Initializing Pi4J-Core");
+
+        // Set up port pins
+        GpioController gpio = GpioFactory.getInstance();
+
+        frame = gpio.provisionDigitalOutputPin(RaspiPin.GPIO_06, "Frame", PinState.LOW);
+        gpio.setMode(PinMode.DIGITAL_OUTPUT, frame);
+
+        interrupt = gpio.provisionDigitalInputPin(RaspiPin.GPIO_03, "Interrupt", PinPullResistance.PULL_UP);
+        gpio.setMode(PinMode.DIGITAL_INPUT, interrupt);
+
+        // Initialize SPI bus
+        log.debug("Initializing SPI bus...");
+        int descriptor = Spi.wiringPiSPISetupMode(Spi.CHANNEL_1, 500000, Spi.MODE_0);
+
+        if (descriptor < 0) {
+            // SPI could not be initialized. Bail
+            log.error("SPI could not be initialized");
+            throw new RuntimeException("Error initializing SPI");
+        }
+    }
+
+    @Override
+    public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+        long start = System.nanoTime();
+
+        // Write command
+        frame.high();
+        delay();
+        long transferTime = transferData(Spi.CHANNEL_1, packet, packet.length);
+
+        // read response (if necessary)
+        if (bytesToReturn > 0) {
+            delay(processingDelay);
+            transferTime += transferData(Spi.CHANNEL_1, response, bytesToReturn);
+        }
+        frame.low();
+        delay();
+
+        long total = System.nanoTime() - start;
+        long processing = bytesToReturn > 0 ? processingDelay * 1000000L : 0;
+        byteNanos += (transferTime / (packet.length + bytesToReturn) - byteNanos) / 8;
+        framingNanos += (total - transferTime - processing - framingNanos) / 8;
+    }
+
+    @Override
+    public long estimateNanos(int bytesToReturn, int processingDelay) {
+        long processing = bytesToReturn > 0 ? processingDelay * 1000000L : 0;
+        return framingNanos + processing + (4 + bytesToReturn) * byteNanos;
+    }
+
+    /**
+     * Releases the GPIO pins
+     */
+    @Override
+    public void close() {
+        GpioController gpio = GpioFactory.getInstance();
+        gpio.unprovisionPin(frame, interrupt);
+    }
+
+    /**
+     * Transfers data to and/or from a Pi-Plate, one byte at a time, toggling Chip Select between bytes
+     * @param channel channel number (normally 1)
+     * @param data the data to send, or the buffer where to put the data received
+     * @param length number of bytes to send/receive
+     * @return the time the transfer took, in nanoseconds
+     */
+    private long transferData(int channel, byte [] data, int length) {
+        long start = System.nanoTime();
+        for(int x = 0; x < length; x++) {
+            dummy[0] = data[x];
+            Spi.wiringPiSPIDataRW(channel, dummy, 1);
+            try { Thread.sleep(0, 500); } catch (Exception e) {}
+            data[x] = dummy[0];
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Pauses the current thread
+     * @param milliseconds number of milliseconds to pause
+     */
+    private void delay(int milliseconds) {
+        try {Thread.sleep(milliseconds);} catch (InterruptedException e) {}
+    }
+
+    /**
+     * One millisecond pause
+     */
+    private void delay() { delay (1); }
+}
@@ -0,0 +1,172 @@
+package com.nahuellofeudo.piplates.shared;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A table of the latest response to each plate command, in a memory-mapped file shared by all processes.
+ *
+ * Entries are keyed by plate address byte, command and first parameter (i.e. plate and channel), and hold the
+ * response bytes and the time they were read. Each entry is protected by a sequence lock: writers (serialized across
+ * processes by the bus lock) make the sequence odd while they update it, and readers retry if the sequence changed
+ * while they were copying. Readers never block writers or touch the bus. Entries are never removed. An entry whose
+ * writer died while updating it can't be read until the next write to it.
+ *
+ * <pre>
+ * Header (64 bytes): long magic, int version
+ * Slot   (64 bytes): long sequence, int key, int length, long time (ms since the epoch), byte[32] data, padding
+ * </pre>
+ *
+ * The ordered accesses need VarHandles, so this class lives in src/main/java11 and is the only part of the library
+ * that needs Java 11.
+ */
+public class LatestValueTable implements Closeable {
+    public static final int SLOTS = 1024;
+    public static final int MAX_DATA = 32;
+
+    private static final long MAGIC = 0x5050564C54424C31L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 64;
+    private static final int SEQUENCE = 0;
+    private static final int KEY = 8;
+    private static final int LENGTH = 12;
+    private static final int TIME = 16;
+    private static final int DATA = 24;
+
+    // A writer that keeps an entry locked this long has most likely died in the middle of an update
+    private static final int MAX_READ_ATTEMPTS = 100000;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer table;
+
+    /**
+     * Maps the table, creating the file if it doesn't exist
+     * @param file the shared file. Preferably on a tmpfs such as /dev/shm
+     * @throws IOException if the file can't be mapped or is not a table
+     */
+    public LatestValueTable(File file) throws IOException {
+        long size = HEADER_SIZE + (long) SLOTS * SLOT_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Growing the file fills it with zeros, which is a valid empty table
+            if (raf.length() < size) raf.setLength(size);
+            channel = raf.getChannel();
+            table = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        table.order(ByteOrder.nativeOrder());
+
+        long magic = (long) LONGS.getAcquire(table, 0);
+        if (magic != 0 && (magic != MAGIC || table.getInt(8) != VERSION)) {
+            close();
+            throw new IOException(file + " is not a latest-value table");
+        }
+    }
+
+    /**
+     * Stores a response. Callers must hold the bus lock, so there is only one writer at a time in all processes
+     * @param packet the command: address byte, command, parameter 1, parameter 2
+     * @param response the response bytes
+     * @param length number of response bytes. Responses longer than MAX_DATA are not stored
+     * @param time when the response was read, in ms since the epoch
+     * @return true if the response was stored, false if it is too long or the table is full
+     */
+    public boolean publish(byte[] packet, byte[] response, int length, long time) {
+        if (length > MAX_DATA) return false;
+        if ((long) LONGS.getAcquire(table, 0) == 0) {
+            table.putInt(8, VERSION);
+            LONGS.setRelease(table, 0, MAGIC);
+        }
+
+        int key = key(packet[0], packet[1], packet[2]);
+        int slot = find(key, true);
+        if (slot < 0) return false;
+
+        int base = HEADER_SIZE + slot * SLOT_SIZE;
+        long sequence = (long) LONGS.getOpaque(table, base + SEQUENCE);
+        // An odd sequence means a writer died halfway through. Start from the next even value so the entry unlocks
+        if ((sequence & 1) != 0) sequence++;
+        LONGS.setOpaque(table, base + SEQUENCE, sequence + 1);
+        VarHandle.storeStoreFence();
+        table.putInt(base + KEY, key);
+        table.putInt(base + LENGTH, length);
+        table.putLong(base + TIME, time);
+        for (int x = 0; x < length; x++) {
+            table.put(base + DATA + x, response[x]);
+        }
+        LONGS.setRelease(table, base + SEQUENCE, sequence + 2);
+        return true;
+    }
+
+    /**
+     * Reads the latest response to a command
+     * @param addressByte the plate's address byte (base address + plate address)
+     * @param command the command
+     * @param parameter the command's first parameter (usually the channel)
+     * @param data buffer of at least MAX_DATA bytes where the response is copied
+     * @return the time the response was read, in ms since the epoch, or 0 if the table has no such response
+     *         (or its writer died while updating it)
+     */
+    public long read(int addressByte, int command, int parameter, byte[] data) {
+        int key = key((byte) addressByte, (byte) command, (byte) parameter);
+        int slot = find(key, false);
+        if (slot < 0) return 0;
+
+        int base = HEADER_SIZE + slot * SLOT_SIZE;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long before = (long) LONGS.getAcquire(table, base + SEQUENCE);
+            if ((before & 1) == 0) {
+                int length = Math.min(table.getInt(base + LENGTH), MAX_DATA);
+                long time = table.getLong(base + TIME);
+                for (int x = 0; x < length; x++) {
+                    data[x] = table.get(base + DATA + x);
+                }
+                VarHandle.loadLoadFence();
+                if ((long) LONGS.getOpaque(table, base + SEQUENCE) == before) return time;
+            }
+            Thread.onSpinWait();
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Finds the slot of a key by linear probing
+     * @param claim whether to return the first empty slot if the key is not in the table
+     * @return the slot, or -1 if not found
+     */
+    private int find(int key, boolean claim) {
+        int start = (key * 0x9E3779B1) >>> 22;
+        for (int x = 0; x < SLOTS; x++) {
+            int slot = (start + x) & (SLOTS - 1);
+            int current = (int) INTS.getAcquire(table, HEADER_SIZE + slot * SLOT_SIZE + KEY);
+            if (current == key) return slot;
+            if (current == 0) return claim ? slot : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Keys are never 0, so 0 marks an empty slot
+     */
+    private static int key(byte address, byte command, byte parameter) {
+        return (1 << 24) | ((address & 0xFF) << 16) | ((command & 0xFF) << 8) | (parameter & 0xFF);
+    }
+}
@@ -0,0 +1,107 @@
+package com.nahuellofeudo.piplates.transport;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * Calls open(), ioctl() and close() from libc through the Foreign Function &amp; Memory API.
+ * Buffers live in a shared arena for the lifetime of this object, so their addresses never change.
+ * The ioctl request is a C unsigned long, which is 32 bits wide on 32-bit Raspberry Pi OS and 64 bits on 64-bit.
+ * Compiled only with Java 22 or later; run with --enable-native-access=ALL-UNNAMED to avoid warnings.
+ */
+public class FfmSpidevIoctl implements SpidevIoctl {
+    private static final int O_RDWR = 2;
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+    private static final VarHandle ERRNO = CALL_STATE.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+
+    private final MethodHandle open;
+    private final MethodHandle ioctl;
+    private final MethodHandle close;
+    private final Arena arena = Arena.ofShared();
+    // Only used while holding the bus lock
+    private final MemorySegment callState = arena.allocate(CALL_STATE);
+
+    public FfmSpidevIoctl() {
+        SymbolLookup libc = LINKER.defaultLookup();
+        Linker.Option errno = Linker.Option.captureCallState("errno");
+        open = LINKER.downcallHandle(libc.find("open").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT), errno);
+        ValueLayout cLong = (ValueLayout) LINKER.canonicalLayouts().get("long");
+        MethodHandle nativeIoctl = LINKER.downcallHandle(libc.find("ioctl").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, cLong, ADDRESS), errno, Linker.Option.firstVariadicArg(2));
+        // Always take the request as a long; it is narrowed to an int where C longs are 32 bits wide
+        ioctl = MethodHandles.explicitCastArguments(nativeIoctl,
+                MethodType.methodType(int.class, MemorySegment.class, int.class, long.class, MemorySegment.class));
+        close = LINKER.downcallHandle(libc.find("close").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT), errno);
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) {
+        return arena.allocate(size, 8).asByteBuffer().order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public long address(ByteBuffer buffer) {
+        return MemorySegment.ofBuffer(buffer).address();
+    }
+
+    @Override
+    public int open(String path) throws IOException {
+        try (Arena call = Arena.ofConfined()) {
+            int fd = (int) open.invokeExact(callState, call.allocateFrom(path), O_RDWR);
+            if (fd < 0) throw new IOException("open(" + path + ") failed, errno " + errno());
+            return fd;
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    @Override
+    public int ioctl(int fd, long request, ByteBuffer argument) throws IOException {
+        try {
+            int result = (int) ioctl.invokeExact(callState, fd, request, MemorySegment.ofBuffer(argument));
+            if (result < 0) throw new IOException("ioctl(0x" + Long.toHexString(request) + ") failed, errno " + errno());
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    @Override
+    public void close(int fd) throws IOException {
+        try {
+            if ((int) close.invokeExact(callState, fd) < 0) throw new IOException("close() failed, errno " + errno());
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    private int errno() {
+        return (int) ERRNO.get(callState, 0L);
+    }
+}
@@ -0,0 +1,109 @@
+package com.nahuellofeudo.piplates;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that PiPlate.reserveBus keeps reservations clear of each other
+ */
+public class BusReservationTest {
+    private static final long MS = 1000000L;
+
+    private final List<BusReservation> reservations = new ArrayList<BusReservation>();
+
+    @After
+    public void tearDown() {
+        for (BusReservation reservation : reservations) {
+            reservation.close();
+        }
+    }
+
+    @Test
+    public void clearRequestIsKept() throws InvalidParameterException {
+        BusReservation first = reserve(0, 200 * MS, 50 * MS);
+        BusReservation second = reserve(100 * MS, 200 * MS, 50 * MS);
+
+        assertEquals(0, first.getFirstSlotNanos());
+        assertEquals(100 * MS, second.getFirstSlotNanos());
+        assertClear(first, second);
+    }
+
+    @Test
+    public void overlappingRequestIsShifted() throws InvalidParameterException {
+        BusReservation first = reserve(0, 200 * MS, 50 * MS);
+        BusReservation second = reserve(20 * MS, 200 * MS, 50 * MS);
+
+        assertEquals(50 * MS, second.getFirstSlotNanos());
+        assertClear(first, second);
+    }
+
+    @Test
+    public void differentPeriodsAreShiftedClear() throws InvalidParameterException {
+        BusReservation first = reserve(0, 200 * MS, 40 * MS);
+        BusReservation second = reserve(0, 300 * MS, 40 * MS);
+        BusReservation third = reserve(0, 600 * MS, 10 * MS);
+
+        assertClear(first, second);
+        assertClear(first, third);
+        assertClear(second, third);
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void requestThatAlwaysOverlapsIsRejected() throws InvalidParameterException {
+        // The trains meet every 100ms, which can't hold two 60ms slots
+        reserve(0, 200 * MS, 60 * MS);
+        reserve(0, 300 * MS, 60 * MS);
+    }
+
+    @Test
+    public void fullPeriodIsRejected() throws InvalidParameterException {
+        reserve(0, 200 * MS, 80 * MS);
+        reserve(80 * MS, 200 * MS, 80 * MS);
+        try {
+            reserve(0, 200 * MS, 50 * MS);
+            fail("Only 40ms of each period are free");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void releasedSlotsCanBeReused() throws InvalidParameterException {
+        BusReservation first = reserve(0, 200 * MS, 150 * MS);
+        first.close();
+        reservations.remove(first);
+
+        assertEquals(0, reserve(0, 200 * MS, 150 * MS).getFirstSlotNanos());
+    }
+
+    private BusReservation reserve(long firstSlotNanos, long periodNanos, long slotNanos) throws InvalidParameterException {
+        BusReservation reservation = PiPlate.reserveBus(firstSlotNanos, periodNanos, slotNanos);
+        reservations.add(reservation);
+        return reservation;
+    }
+
+    /**
+     * Walks both trains of slots over several common periods and checks that no two slots overlap
+     */
+    private static void assertClear(BusReservation a, BusReservation b) {
+        long end = 10 * a.getPeriodNanos() * b.getPeriodNanos() / MS;
+        long startA = a.getFirstSlotNanos();
+        long startB = b.getFirstSlotNanos();
+        while (startA < end && startB < end) {
+            assertFalse("Slots at " + startA + " and " + startB + " overlap",
+                    startA < startB + b.getSlotNanos() && startB < startA + a.getSlotNanos());
+            if (startA < startB) {
+                startA += a.getPeriodNanos();
+            } else {
+                startB += b.getPeriodNanos();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.nahuellofeudo.piplates.daqcplate;
+
+import com.nahuellofeudo.piplates.PiPlate;
+import com.nahuellofeudo.piplates.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a ControlLoop against a transport that takes as long as the plates would
+ */
+public class ControlLoopTest {
+    private ControlLoop loop;
+
+    @Before
+    public void setUp() {
+        PiPlate.setTransport(new Transport() {
+            @Override
+            public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+                if (bytesToReturn > 0) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(processingDelay));
+                for (int x = 0; x < bytesToReturn; x++) {
+                    response[x] = 1;
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (loop != null) loop.stop();
+        PiPlate.setTransport(null);
+    }
+
+    @Test(timeout = 5000)
+    public void commandLongerThanTheFreeTimeStillRuns() throws Exception {
+        DAQCPlate plate = new DAQCPlate(0);
+        ControlFunction hold = new ControlFunction() {
+            @Override
+            public double update(int input, double periodSeconds) {
+                return input;
+            }
+        };
+        // Each cycle takes about 105ms, leaving less than a getADC() (about 103ms) free in each period
+        loop = new ControlLoop(plate, 0, ControlOutput.PWM, 0, hold, 200, TimeUnit.MILLISECONDS);
+        loop.start();
+        Thread.sleep(300);
+
+        long start = System.nanoTime();
+        plate.getADC(1);
+        long waited = System.nanoTime() - start;
+
+        assertTrue("getADC() took " + waited + "ns", waited < TimeUnit.MILLISECONDS.toNanos(600));
+        assertTrue(loop.getCycles() > 0);
+    }
+}
@@ -0,0 +1,139 @@
+package com.nahuellofeudo.piplates.scheduler;
+
+import com.nahuellofeudo.piplates.PiPlate;
+import com.nahuellofeudo.piplates.relayplate.RELAYPlate;
+import com.nahuellofeudo.piplates.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs an OutputScheduler against a transport that records the relay commands it receives
+ */
+public class OutputSchedulerTest {
+    private static final int RELAY_ON = 0x10;
+    private static final int RELAY_OFF = 0x11;
+    private static final int RELAY_ALL = 0x13;
+    private static final int RELAY_STATE = 0x14;
+
+    // Relay 7 is closed before the tests start
+    private static final int INITIAL_STATE = 0x40;
+
+    private final List<int[]> commands = Collections.synchronizedList(new ArrayList<int[]>());
+    private RELAYPlate plate;
+    private OutputScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        PiPlate.setTransport(new Transport() {
+            @Override
+            public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+                commands.add(new int[]{packet[1], packet[2]});
+                if (packet[1] == RELAY_STATE) response[0] = INITIAL_STATE;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        plate = new RELAYPlate(0);
+        // Long ticks, so changes scheduled together always fall in the same one
+        scheduler = new OutputScheduler(100, TimeUnit.MILLISECONDS, 64);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        scheduler.shutdown();
+        PiPlate.setTransport(null);
+    }
+
+    @Test(timeout = 5000)
+    public void pulseShorterThanATickClosesThenOpens() throws Exception {
+        ScheduledOutput off = scheduler.pulseRelay(plate, 3, 1, TimeUnit.MILLISECONDS);
+        awaitDone(off);
+
+        assertCommands(new int[]{RELAY_ON, 3}, new int[]{RELAY_OFF, 3});
+        assertEquals(2, scheduler.getWrites());
+        assertEquals(0, scheduler.getMerged());
+    }
+
+    @Test(timeout = 5000)
+    public void threeRelaysInATickAreWrittenTogether() throws Exception {
+        ScheduledOutput first = scheduler.relayOn(plate, 1, 0, TimeUnit.MILLISECONDS);
+        ScheduledOutput second = scheduler.relayOn(plate, 2, 0, TimeUnit.MILLISECONDS);
+        ScheduledOutput third = scheduler.relayOff(plate, 7, 0, TimeUnit.MILLISECONDS);
+        awaitDone(first, second, third);
+
+        assertCommands(new int[]{RELAY_STATE, 0}, new int[]{RELAY_ALL, 0x03});
+        assertEquals(2, scheduler.getWrites());
+        assertEquals(1, scheduler.getMerged());
+        assertEquals(3, scheduler.getLatency().getCount());
+    }
+
+    @Test(timeout = 5000)
+    public void twoRelaysInATickAreWrittenOneByOne() throws Exception {
+        ScheduledOutput first = scheduler.relayOn(plate, 1, 0, TimeUnit.MILLISECONDS);
+        ScheduledOutput second = scheduler.relayOff(plate, 2, 0, TimeUnit.MILLISECONDS);
+        awaitDone(first, second);
+
+        assertCommands(new int[]{RELAY_ON, 1}, new int[]{RELAY_OFF, 2});
+        assertEquals(2, scheduler.getWrites());
+        assertEquals(0, scheduler.getMerged());
+    }
+
+    @Test(timeout = 5000)
+    public void lastChangeToARelayInATickWins() throws Exception {
+        ScheduledOutput on = scheduler.relayOn(plate, 4, 0, TimeUnit.MILLISECONDS);
+        ScheduledOutput off = scheduler.relayOff(plate, 4, 0, TimeUnit.MILLISECONDS);
+        awaitDone(on, off);
+
+        assertCommands(new int[]{RELAY_OFF, 4});
+        assertEquals(1, scheduler.getWrites());
+        assertEquals(1, scheduler.getMerged());
+    }
+
+    @Test(timeout = 5000)
+    public void cancelledChangesAreNotWritten() throws Exception {
+        ScheduledOutput cancelled = scheduler.relayOn(plate, 5, 150, TimeUnit.MILLISECONDS);
+        ScheduledOutput kept = scheduler.relayOn(plate, 6, 150, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        awaitDone(kept);
+
+        assertCommands(new int[]{RELAY_ON, 6});
+        assertEquals(1, scheduler.getWrites());
+    }
+
+    /**
+     * Waits for the changes to be applied, then stops the scheduler so its counters are final
+     */
+    private void awaitDone(ScheduledOutput... changes) throws InterruptedException {
+        for (ScheduledOutput change : changes) {
+            while (!change.isDone()) {
+                Thread.sleep(5);
+            }
+        }
+        scheduler.shutdown();
+    }
+
+    private void assertCommands(int[]... expected) {
+        List<String> actual = new ArrayList<String>();
+        synchronized (commands) {
+            for (int[] command : commands) {
+                actual.add(String.format("0x%02X %d", command[0], command[1]));
+            }
+        }
+        List<String> wanted = new ArrayList<String>();
+        for (int[] command : expected) {
+            wanted.add(String.format("0x%02X %d", command[0], command[1]));
+        }
+        assertEquals(wanted, actual);
+    }
+}
@@ -0,0 +1,98 @@
+package com.nahuellofeudo.piplates.shared;
+
+import com.nahuellofeudo.piplates.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs CrossProcessTransport on a temporary lock file and table
+ */
+public class CrossProcessTransportTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CrossProcessTransport transport;
+    private int exchanges;
+
+    @Before
+    public void setUp() throws IOException {
+        Transport plates = new Transport() {
+            @Override
+            public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+                exchanges++;
+                for (int x = 0; x < bytesToReturn; x++) {
+                    response[x] = packet[2];
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        transport = new CrossProcessTransport(plates, folder.newFile("piplates.lock"),
+                new LatestValueTable(folder.newFile("piplates.table")));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Thread.interrupted();
+        transport.close();
+    }
+
+    @Test
+    public void publishesResponses() {
+        byte[] response = new byte[1];
+        transport.exchange(new byte[]{24, 0x14, 5, 0}, response, 1, 1);
+
+        byte[] data = new byte[LatestValueTable.MAX_DATA];
+        assertTrue(transport.getTable().read(24, 0x14, 5, data) > 0);
+        assertEquals(5, data[0]);
+    }
+
+    @Test
+    public void interruptedCallerDoesNotBreakTheBus() throws Exception {
+        byte[] response = new byte[1];
+        Thread.currentThread().interrupt();
+        transport.exchange(new byte[]{24, 0x14, 1, 0}, response, 1, 1);
+        assertTrue("The interrupt flag must be restored", Thread.interrupted());
+        assertArrayEquals(new byte[]{1}, response);
+
+        // Later calls from this and other threads still get the bus
+        transport.exchange(new byte[]{24, 0x14, 2, 0}, response, 1, 1);
+        assertArrayEquals(new byte[]{2}, response);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.exchange(new byte[]{24, 0x14, 3, 0}, new byte[1], 1, 1);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        other.start();
+        other.join();
+        assertNull(failure.get());
+        assertEquals(3, exchanges);
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void closedTransportFails() throws IOException {
+        transport.close();
+        transport.exchange(new byte[]{24, 0x14, 1, 0}, new byte[1], 1, 1);
+    }
+}
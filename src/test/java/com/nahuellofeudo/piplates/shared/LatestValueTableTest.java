@@ -0,0 +1,199 @@
+package com.nahuellofeudo.piplates.shared;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises LatestValueTable on a temporary file
+ */
+public class LatestValueTableTest {
+    // Layout of the file, as documented in LatestValueTable
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private LatestValueTable table;
+    private final byte[] data = new byte[LatestValueTable.MAX_DATA];
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "piplates.table");
+        table = new LatestValueTable(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        table.close();
+    }
+
+    @Test
+    public void publishThenRead() {
+        assertTrue(table.publish(new byte[]{9, 0x30, 3, 0}, new byte[]{1, 2}, 2, 1000));
+
+        assertEquals(1000, table.read(9, 0x30, 3, data));
+        assertEquals(1, data[0]);
+        assertEquals(2, data[1]);
+        assertEquals(0, table.read(9, 0x30, 4, data));
+        assertEquals(0, table.read(8, 0x30, 3, data));
+    }
+
+    @Test
+    public void laterResponsesReplaceEarlierOnes() {
+        table.publish(new byte[]{9, 0x30, 3, 0}, new byte[]{1, 2}, 2, 1000);
+        table.publish(new byte[]{9, 0x30, 3, 0}, new byte[]{3, 4}, 2, 2000);
+
+        assertEquals(2000, table.read(9, 0x30, 3, data));
+        assertEquals(3, data[0]);
+        assertEquals(4, data[1]);
+    }
+
+    @Test
+    public void longResponsesAreNotStored() {
+        assertFalse(table.publish(new byte[]{9, 0x31, 0, 0}, new byte[64], 64, 1000));
+        assertEquals(0, table.read(9, 0x31, 0, data));
+    }
+
+    @Test
+    public void otherMappingsSeeTheValues() throws IOException {
+        table.publish(new byte[]{24, 0x14, 0, 0}, new byte[]{0x55}, 1, 1000);
+
+        LatestValueTable other = new LatestValueTable(file);
+        try {
+            assertEquals(1000, other.read(24, 0x14, 0, data));
+            assertEquals(0x55, data[0]);
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void everySlotCanBeFilled() {
+        // A full table forces collisions and wrap-around in the linear probing. One more key than fits is refused
+        for (int x = 0; x < LatestValueTable.SLOTS; x++) {
+            assertTrue("Slot " + x, table.publish(packet(x), response(x), 4, x + 1));
+        }
+        assertFalse(table.publish(new byte[]{16, 0, 0, 0}, new byte[4], 4, 1));
+
+        for (int x = 0; x < LatestValueTable.SLOTS; x++) {
+            assertEquals(x + 1, table.read(packet(x)[0], packet(x)[1], packet(x)[2], data));
+            assertEquals(x, ((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+        }
+    }
+
+    @Test
+    public void entryLeftOddByADeadWriterRecovers() throws IOException {
+        table.publish(new byte[]{9, 0x30, 3, 0}, new byte[]{1, 2}, 2, 1000);
+
+        // Make the entry look like a writer died in the middle of an update
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer raw = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            raw.order(ByteOrder.nativeOrder());
+            int poisoned = 0;
+            for (int slot = 0; slot < LatestValueTable.SLOTS; slot++) {
+                int base = HEADER_SIZE + slot * SLOT_SIZE;
+                if (raw.getLong(base) != 0) {
+                    raw.putLong(base, raw.getLong(base) + 1);
+                    poisoned++;
+                }
+            }
+            assertEquals(1, poisoned);
+        } finally {
+            raf.close();
+        }
+        assertEquals(0, table.read(9, 0x30, 3, data));
+
+        table.publish(new byte[]{9, 0x30, 3, 0}, new byte[]{3, 4}, 2, 2000);
+        assertEquals(2000, table.read(9, 0x30, 3, data));
+        assertEquals(3, data[0]);
+        table.publish(new byte[]{9, 0x30, 3, 0}, new byte[]{5, 6}, 2, 3000);
+        assertEquals(3000, table.read(9, 0x30, 3, data));
+        assertEquals(5, data[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        File other = folder.newFile("other");
+        RandomAccessFile raf = new RandomAccessFile(other, "rw");
+        try {
+            raf.writeLong(0x0123456789ABCDEFL);
+        } finally {
+            raf.close();
+        }
+        new LatestValueTable(other);
+    }
+
+    @Test(timeout = 10000)
+    public void readersNeverSeeTornEntries() throws Exception {
+        final byte[] packet = {9, 0x31, 0, 0};
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        // Every response is 16 copies of the same byte, published at a time equal to that byte + 1
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] response = new byte[16];
+                for (int x = 0; running.get(); x++) {
+                    byte value = (byte) x;
+                    for (int b = 0; b < response.length; b++) {
+                        response[b] = value;
+                    }
+                    table.publish(packet, response, response.length, (value & 0xFF) + 1);
+                }
+            }
+        });
+        writer.start();
+
+        try {
+            byte[] read = new byte[LatestValueTable.MAX_DATA];
+            int consistent = 0;
+            long end = System.nanoTime() + 500000000L;
+            while (System.nanoTime() < end) {
+                long time = table.read(9, 0x31, 0, read);
+                if (time == 0) continue;
+                byte expected = (byte) (time - 1);
+                for (int b = 0; b < 16; b++) {
+                    if (read[b] != expected) throw new AssertionError("Torn read at time " + time + ", byte " + b);
+                }
+                consistent++;
+            }
+            assertTrue(consistent > 0);
+        } catch (Throwable t) {
+            failure.set(t);
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private static byte[] packet(int x) {
+        // 8 plate addresses x 128 commands = 1024 distinct keys
+        return new byte[]{(byte) (8 + (x >> 7)), (byte) (x & 0x7F), (byte) (x % 3), 0};
+    }
+
+    private static byte[] response(int x) {
+        return new byte[]{(byte) (x >> 8), (byte) x, 0, 0};
+    }
+}
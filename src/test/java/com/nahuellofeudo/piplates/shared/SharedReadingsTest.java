@@ -0,0 +1,97 @@
+package com.nahuellofeudo.piplates.shared;
+
+import com.nahuellofeudo.piplates.daqcplate.DAQCPlate;
+import com.nahuellofeudo.piplates.relayplate.RELAYPlate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Publishes plate responses the way CrossProcessTransport does and reads them back through SharedReadings
+ */
+public class SharedReadingsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LatestValueTable table;
+    private SharedReadings readings;
+
+    @Before
+    public void setUp() throws IOException {
+        table = new LatestValueTable(folder.newFile("piplates.table"));
+        readings = new SharedReadings(table);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        readings.close();
+    }
+
+    @Test
+    public void nothingReadYet() {
+        assertNull(readings.getADC(2, 0));
+        assertNull(readings.getDINAll(2));
+        assertNull(readings.getRelayState(2));
+    }
+
+    @Test
+    public void singleADCRead() {
+        publish(DAQCPlate.BASE_ADDRESS + 2, 0x30, 5, 1000, 0x01, 0x02);
+
+        SharedReadings.Reading reading = readings.getADC(2, 5);
+        assertEquals(4 * 0x0102, reading.getValue());
+        assertEquals(1000, reading.getTime());
+        assertNull(readings.getADC(2, 4));
+        assertNull(readings.getADC(3, 5));
+    }
+
+    @Test
+    public void supplyChannelIsScaled() {
+        publish(DAQCPlate.BASE_ADDRESS, 0x30, 8, 1000, 0x01, 0x02);
+        assertEquals(8 * 0x0102, readings.getADC(0, 8).getValue());
+    }
+
+    @Test
+    public void newestOfSingleAndAllReads() {
+        int[] all = new int[16];
+        for (int channel = 0; channel < 8; channel++) {
+            all[2 * channel] = channel;
+            all[2 * channel + 1] = 0x10;
+        }
+        publish(DAQCPlate.BASE_ADDRESS + 1, 0x30, 3, 1000, 0x7F, 0x7F);
+        publish(DAQCPlate.BASE_ADDRESS + 1, 0x31, 0, 2000, all);
+
+        assertEquals(4 * 0x0310, readings.getADC(1, 3).getValue());
+        assertEquals(2000, readings.getADC(1, 3).getTime());
+        assertEquals(4 * 0x0610, readings.getADC(1, 6).getValue());
+
+        publish(DAQCPlate.BASE_ADDRESS + 1, 0x30, 3, 3000, 0x00, 0x01);
+        assertEquals(4, readings.getADC(1, 3).getValue());
+        assertEquals(3000, readings.getADC(1, 3).getTime());
+    }
+
+    @Test
+    public void digitalInputsAndRelays() {
+        publish(DAQCPlate.BASE_ADDRESS + 4, 0x25, 0, 1000, 0xA5);
+        publish(RELAYPlate.BASE_ADDRESS + 4, 0x14, 0, 2000, 0x41);
+
+        assertEquals(0xA5, readings.getDINAll(4).getValue());
+        assertEquals(0x41, readings.getRelayState(4).getValue());
+        assertEquals(2000, readings.getRelayState(4).getTime());
+    }
+
+    private void publish(int address, int command, int parameter, long time, int... response) {
+        byte[] bytes = new byte[response.length];
+        for (int x = 0; x < response.length; x++) {
+            bytes[x] = (byte) response[x];
+        }
+        table.publish(new byte[]{(byte) address, (byte) command, (byte) parameter, 0}, bytes, bytes.length, time);
+    }
+}
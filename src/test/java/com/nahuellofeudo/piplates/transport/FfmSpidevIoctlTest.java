@@ -0,0 +1,111 @@
+package com.nahuellofeudo.piplates.transport;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Calls libc through FfmSpidevIoctl. Runs only on Java 22 or later, where the spidev-ffm profile builds the class;
+ * the native calls are made on a regular file, so no SPI device is needed
+ */
+public class FfmSpidevIoctlTest {
+    // errno values on Linux
+    private static final int ENOENT = 2;
+    private static final int EBADF = 9;
+    private static final int ENOTTY = 25;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SpidevIoctl ioctl;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("FfmSpidevIoctl needs Java 22 or later", javaVersion() >= 22);
+        // On Java 22 the profile must have built the class, so a missing class is a failure, not a skip
+        ioctl = (SpidevIoctl) Class.forName("com.nahuellofeudo.piplates.transport.FfmSpidevIoctl")
+                .getDeclaredConstructor().newInstance();
+        file = folder.newFile("spidev");
+    }
+
+    @After
+    public void tearDown() {
+        ioctl = null;
+    }
+
+    @Test
+    public void openAndClose() throws IOException {
+        int fd = ioctl.open(file.getPath());
+        assertTrue(fd >= 0);
+        ioctl.close(fd);
+
+        try {
+            ioctl.close(fd);
+            fail("The descriptor was already closed");
+        } catch (IOException e) {
+            assertErrno(e, EBADF);
+        }
+    }
+
+    @Test
+    public void openFailureReportsErrno() {
+        try {
+            ioctl.open(new File(folder.getRoot(), "missing").getPath());
+            fail("The file doesn't exist");
+        } catch (IOException e) {
+            assertErrno(e, ENOENT);
+        }
+    }
+
+    @Test
+    public void ioctlReachesTheKernel() throws IOException {
+        ByteBuffer mode = ioctl.allocate(1);
+        assertEquals(ByteOrder.nativeOrder(), mode.order());
+        assertTrue(ioctl.address(mode) != 0);
+
+        int fd = ioctl.open(file.getPath());
+        try {
+            // A regular file doesn't know SPI requests, so the kernel answers "not a typewriter"
+            ioctl.ioctl(fd, SpidevTransport.SPI_IOC_WR_MODE, mode);
+            fail("ioctl() on a regular file must fail");
+        } catch (IOException e) {
+            assertErrno(e, ENOTTY);
+        } finally {
+            ioctl.close(fd);
+        }
+    }
+
+    @Test
+    public void allocationsKeepTheirAddress() {
+        ByteBuffer buffer = ioctl.allocate(64);
+        long address = ioctl.address(buffer);
+        assertEquals(0, address % 8);
+        assertEquals(address, ioctl.address(buffer));
+
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(32);
+        assertEquals(address + 32, ioctl.address(slice.slice()));
+    }
+
+    private static void assertErrno(IOException e, int errno) {
+        assertTrue(e.getMessage(), e.getMessage().endsWith("errno " + errno));
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
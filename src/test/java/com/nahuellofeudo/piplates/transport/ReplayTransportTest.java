@@ -0,0 +1,92 @@
+package com.nahuellofeudo.piplates.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records exchanges with RecordingTransport and plays them back with ReplayTransport
+ */
+public class ReplayTransportTest {
+    private static final long MS = 1000000L;
+
+    /**
+     * A plate that answers with the command's first parameter and takes processingDelay + 1ms per response byte
+     */
+    private static final Transport PLATES = new Transport() {
+        @Override
+        public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(processingDelay + bytesToReturn));
+            for (int x = 0; x < bytesToReturn; x++) {
+                response[x] = packet[2];
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Test
+    public void servesRecordedResponses() throws IOException {
+        ReplayTransport replay = replay(0, new byte[]{8, 0x30, 3, 0}, 2, 1, new byte[]{8, 0x40, 1, 0}, 0, 0);
+
+        byte[] response = new byte[2];
+        replay.exchange(new byte[]{8, 0x30, 3, 0}, response, 2, 1);
+        assertArrayEquals(new byte[]{3, 3}, response);
+        replay.exchange(new byte[]{8, 0x40, 1, 0}, null, 0, 0);
+        assertEquals(2, replay.getServed());
+    }
+
+    @Test
+    public void estimatesTheLongestRecordedExchangeOfTheSameShape() throws IOException {
+        ReplayTransport replay = replay(1,
+                new byte[]{8, 0x30, 0, 0}, 2, 5,
+                new byte[]{8, 0x30, 1, 0}, 2, 20,
+                new byte[]{8, 0x31, 0, 0}, 16, 5);
+
+        long estimate = replay.estimateNanos(2, 20);
+        assertTrue("Estimated " + estimate + "ns", estimate >= 22 * MS && estimate < 200 * MS);
+        assertTrue(replay.estimateNanos(2, 5) < estimate);
+        assertTrue(replay.estimateNanos(16, 5) >= 21 * MS);
+        // Shapes that were never recorded fall back to the default estimate
+        assertEquals(new Transport() {
+            @Override
+            public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+            }
+
+            @Override
+            public void close() {
+            }
+        }.estimateNanos(4, 7), replay.estimateNanos(4, 7));
+    }
+
+    @Test
+    public void estimatesAreScaled() throws IOException {
+        ReplayTransport replay = replay(0, new byte[]{8, 0x30, 0, 0}, 2, 20);
+        assertEquals(0, replay.estimateNanos(2, 20));
+        assertEquals(0, replay.estimateNanos(4, 7));
+    }
+
+    /**
+     * Records the given exchanges (packet, bytes to return, processing delay, ...) and loads them into a replay
+     */
+    private static ReplayTransport replay(double timeScale, Object... exchanges) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordingTransport recorder = new RecordingTransport(PLATES, out);
+        for (int x = 0; x < exchanges.length; x += 3) {
+            int bytesToReturn = (Integer) exchanges[x + 1];
+            recorder.exchange((byte[]) exchanges[x], new byte[bytesToReturn], bytesToReturn, (Integer) exchanges[x + 2]);
+        }
+        recorder.close();
+        return new ReplayTransport(new ByteArrayInputStream(out.toByteArray()), timeScale);
+    }
+}
@@ -0,0 +1,93 @@
+package com.nahuellofeudo.piplates.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs frames through SpidevTransport against FakeSpidevIoctl and checks what reaches the plates and what comes back
+ */
+public class SpidevTransportTest {
+    private List<byte[]> packets;
+    private FakeSpidevIoctl fake;
+    private SpidevTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        packets = new ArrayList<byte[]>();
+        Transport plates = new Transport() {
+            @Override
+            public void exchange(byte[] packet, byte[] response, int bytesToReturn, int processingDelay) {
+                packets.add(Arrays.copyOf(packet, 4));
+                for (int x = 0; x < bytesToReturn; x++) {
+                    response[x] = (byte) (packet[2] + x);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        fake = new FakeSpidevIoctl(plates);
+        transport = new SpidevTransport(fake, SpidevTransport.DEFAULT_DEVICE, SpidevTransport.DEFAULT_SPEED, fake);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.close();
+    }
+
+    @Test
+    public void configuresTheDevice() {
+        assertEquals(0, fake.getMode());
+        assertEquals(SpidevTransport.DEFAULT_SPEED, fake.getSpeedHz());
+        assertEquals(2, fake.getIoctls());
+    }
+
+    @Test
+    public void commandAndResponseShareOneIoctl() {
+        byte[] packet = {8, 0x30, 3, 0};
+        byte[] response = new byte[2];
+        transport.exchange(packet, response, 2, 1);
+
+        assertEquals(1, packets.size());
+        assertArrayEquals(packet, packets.get(0));
+        assertArrayEquals(new byte[]{3, 4}, response);
+        assertEquals(3, fake.getIoctls());
+        assertEquals(6, fake.getTransfers());
+    }
+
+    @Test
+    public void longProcessingDelaySplitsTheFrame() {
+        byte[] packet = {8, 0x31, 5, 0};
+        byte[] response = new byte[16];
+        transport.exchange(packet, response, 16, 100);
+
+        assertEquals(1, packets.size());
+        assertArrayEquals(packet, packets.get(0));
+        for (int x = 0; x < 16; x++) {
+            assertEquals(5 + x, response[x]);
+        }
+        assertEquals(4, fake.getIoctls());
+        assertEquals(20, fake.getTransfers());
+    }
+
+    @Test
+    public void writeOnlyCommand() {
+        byte[] packet = {8, 0x40, 2, 100};
+        transport.exchange(packet, null, 0, 0);
+
+        assertEquals(1, packets.size());
+        assertArrayEquals(packet, packets.get(0));
+        assertEquals(3, fake.getIoctls());
+        assertEquals(4, fake.getTransfers());
+    }
+}